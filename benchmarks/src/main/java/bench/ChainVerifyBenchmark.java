@@ -0,0 +1,76 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// full verification of a synthetic chain, as "V full" does
+// the chain is written to a ledger in a temp dir and reopened, so blocks are read back off disk
+// every block holds the same signed record, so each one still costs a marshal and a signature check
+// setup verifies the chain once too, which doubles as the warmup
+// blocks are sealed at difficulty 1, so the fork runs with that as the starting difficulty and no retargeting
+// the big chains take a while to build and verify, -p chainSize=1000,10000 to skip them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Dblockchain.difficulty=1", "-Dblockchain.retarget=0"})
+public class ChainVerifyBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int chainSize;
+
+    private Path dir;
+    private List<Object> ledger;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bench-ledger");
+        List<Object> records = Collections.singletonList(Fixtures.record());
+        List<Object> building = Node.OPS.openLedger(dir.toFile());
+        String previousHash = "0";
+        for (int i = 0; i < chainSize; i++) {
+            Object b = Fixtures.sealed(previousHash, records, 1);
+            building.add(b);
+            previousHash = Node.OPS.calc(b);
+        }
+        Node.OPS.flushLedger(building);
+        ledger = Node.OPS.openLedger(dir.toFile());
+        if (ledger.size() != chainSize || !Node.OPS.verifyChain(ledger)) {
+            throw new IllegalStateException("synthetic chain of " + chainSize + " blocks didn't verify");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Node.OPS.flushLedger(ledger);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public boolean verifyBlockchain() {
+        return Node.OPS.verifyChain(ledger);
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+// blocks to benchmark with, built the same way the node builds them
+final class Fixtures {
+    // a line of BlockInput0.txt
+    static final String LINE = "John Smith 1996.03.07 123-45-6789 Chickenpox BedRest aspirin";
+    static final int PID = 0;
+
+    private static KeyPair keys;
+
+    private Fixtures() {
+    }
+
+    // pid 0's keys, in the configured scheme, registered so its records verify
+    static synchronized KeyPair keys() {
+        if (keys == null) {
+            keys = Node.OPS.generateKeyPair(Node.OPS.configuredScheme());
+            Node.OPS.storeKey(PID, keys.getPublic());
+        }
+        return keys;
+    }
+
+    // a signed, unverified record, as it arrives from another node
+    static Object record() {
+        return Node.OPS.createSignedBlock(Node.OPS.createXml(), LINE, PID, keys().getPrivate());
+    }
+
+    // a block holding these records, solved at this difficulty on top of previousHash
+    // the nonce is searched for here, so keep the difficulty low
+    static Object sealed(String previousHash, List<?> records, int difficulty) {
+        Object b = Node.OPS.newBlock();
+        Node.OPS.setBlockId(b, UUID.randomUUID().toString());
+        Node.OPS.setCreateTime(b, System.currentTimeMillis());
+        Node.OPS.setCreatingProcessId(b, PID);
+        Node.OPS.setRecords(b, records);
+        Node.OPS.setPreviousBlockHash(b, previousHash);
+        Node.OPS.setDifficulty(b, difficulty);
+        Node.OPS.setSealTime(b, System.currentTimeMillis());
+        long nonce = 0;
+        do {
+            Node.OPS.setNonce(b, nonce++);
+        } while (!Node.OPS.meetsTarget(Node.OPS.hash(b), difficulty));
+        Node.OPS.setSolvedProcessId(b, PID);
+        Node.OPS.setBlockHash(b, Node.OPS.calc(b));
+        return b;
+    }
+
+    static Object sealed(String previousHash, int difficulty) {
+        return sealed(previousHash, Collections.singletonList(record()), difficulty);
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// block hashing and mining
+//   calc          CalcHashHelper.calc, the full header hash as hex, what verification does per block
+//   nonceAttempt  one iteration of a miner's loop: clone the prefix state, add the nonce, finish the digest
+//                 ops/sec here is the best hashes/sec one miner thread can do
+//   mine          MiningEngine.mine to a solution, ops/sec is solves/sec, times 2^difficulty for hashes/sec
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+    @Param({"8", "12"})
+    public int difficulty;
+
+    private Object block;
+    private MessageDigest prefixState;
+    private byte[] nonceBytes = new byte[8];
+    private byte[] hash = new byte[32];
+    private long nonce;
+
+    @Setup
+    public void setup() throws Exception {
+        Object record = Fixtures.record();
+        block = Fixtures.sealed("0", Collections.singletonList(record), difficulty);
+        prefixState = Node.OPS.prefixState(block);
+        // miners give up on a block once its records leave the unverified pool, so put them there
+        Node.OPS.unverifiedPool();
+        Node.OPS.addUnverified(record);
+    }
+
+    @Benchmark
+    public String calc() {
+        return Node.OPS.calc(block);
+    }
+
+    @Benchmark
+    public byte[] nonceAttempt() throws CloneNotSupportedException, DigestException {
+        MessageDigest md = (MessageDigest) prefixState.clone();
+        Node.OPS.putLong(nonceBytes, 0, nonce++);
+        md.update(nonceBytes);
+        md.digest(hash, 0, hash.length);
+        return hash;
+    }
+
+    @Benchmark
+    public Object mine() {
+        return Node.OPS.mine(block);
+    }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+// the node lives in the default package, which JMH (and any other named package) can't import
+// so the benchmarks get at it through NodeOps, which the node implements as Blockchain.BenchmarkOps
+// OPS is static final with one implementation, so the JIT inlines its calls like direct ones
+final class Node {
+    static final NodeOps OPS = load();
+
+    private Node() {
+    }
+
+    // the node's class name is the one thing not checked when the benchmarks are compiled
+    private static NodeOps load() {
+        try {
+            return (NodeOps) Class.forName("Blockchain$BenchmarkOps").getConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("node classes aren't on the classpath", ex);
+        }
+    }
+}
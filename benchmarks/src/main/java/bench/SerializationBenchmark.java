@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// turning input lines into blocks, and blocks into xml and wire frames and back
+//   parseText                   CreateXml.createBlock, ParseText plus filling in a new block
+//   marshalFromString           what CreateXml.marshalFromString does: parse, sign, marshal
+//   marshalFromBlockchainBlock  marshal a solved block holding one record
+//   unmarshal                   xml of that block back to a block
+//   encodeWire / decodeWire     the same block as a binary frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    private Object createXml;
+    private Object sealed;
+    private String xml;
+    private byte[] frame;
+
+    @Setup
+    public void setup() {
+        createXml = Node.OPS.createXml();
+        sealed = Fixtures.sealed("0", 4);
+        xml = Node.OPS.marshal(sealed);
+        frame = Node.OPS.encode(sealed);
+    }
+
+    @Benchmark
+    public Object parseText() {
+        return Node.OPS.createBlock(createXml, Fixtures.LINE, Fixtures.PID);
+    }
+
+    @Benchmark
+    public String marshalFromString() {
+        return Node.OPS.marshal(Node.OPS.createSignedBlock(createXml, Fixtures.LINE, Fixtures.PID, Fixtures.keys().getPrivate()));
+    }
+
+    @Benchmark
+    public String marshalFromBlockchainBlock() {
+        return Node.OPS.marshalFromBlockchainBlock(createXml, sealed);
+    }
+
+    @Benchmark
+    public Object unmarshal() {
+        return Node.OPS.unmarshalBlock(xml);
+    }
+
+    @Benchmark
+    public byte[] encodeWire() {
+        return Node.OPS.encode(sealed);
+    }
+
+    @Benchmark
+    public Object decodeWire() {
+        // skip the MAGIC byte, as the reader does before it knows this is a binary frame
+        return Node.OPS.readFrame(new ByteArrayInputStream(frame, 1, frame.length - 1));
+    }
+}
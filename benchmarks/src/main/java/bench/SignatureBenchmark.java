@@ -0,0 +1,52 @@
+package bench;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// signing and verifying a block digest with each signature scheme, through SignatureHelper
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+    @Param({"rsa-1024", "rsa-2048", "ecdsa-p256", "ed25519"})
+    public String scheme;
+
+    private Object signatureScheme;
+    private KeyPair keys;
+    private byte[] digest;
+    private byte[] signature;
+
+    @Setup
+    public void setup() {
+        signatureScheme = Node.OPS.scheme(scheme);
+        keys = Node.OPS.generateKeyPair(signatureScheme);
+        // blocks are signed over the SHA-256 of their xml, so sign 32 bytes
+        digest = Node.OPS.hash(Fixtures.sealed("0", 1));
+        signature = Node.OPS.sign(digest, keys.getPrivate(), signatureScheme);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return Node.OPS.sign(digest, keys.getPrivate(), signatureScheme);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Node.OPS.verify(digest, keys.getPublic(), signature, signatureScheme);
+    }
+}
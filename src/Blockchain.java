@@ -7,6 +7,11 @@
 *   on command line:
 *       R <filename> to read file in and begin work to create blockchain
 *       quit to exit
+*   java Blockchain <pid> <filename> to load a file without the prompt
+*   (the node keeps running once stdin is closed)
+*   ./all.sh N for N nodes, or see Membership for a members file or seed list
+*   java XmlBenchmark [iterations] to time XML serialization
+*   java GossipSimulation [messages] [nodes...] to compare multicast and gossip
 * Files needed to run:
 *   - Blockchain.java
 /----------------------------------------------------------*/
@@ -14,11 +19,23 @@
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.security.MessageDigest;
 import java.security.spec.X509EncodedKeySpec;
 import java.math.BigInteger;
 import java.security.*;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToIntFunction;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+// metrics endpoint
+import com.sun.net.httpserver.HttpServer;
 
 // XML libraries
 import javax.xml.bind.JAXBContext;
@@ -37,13 +54,10 @@ class Blockchain {
         int q_len = 6; // queue length
         int pid = ((args.length < 1) ? 0 : Integer.parseInt(args[0]));
         bc = new BlockchainNode(pid); // create new blockchain node instance
-        // if this is process # 2, multicast public keys to other nodes
         System.out.println("Scott Friedrich's blockchain framework.");
         System.out.println("Using processID: " + pid + "\n");
-        // if this is process 2, start sending keys to every process
-        if (pid == 2) {
-            bc.startPublicKeySimulcast();
-        }
+        // tell the cluster we're here, with our public key
+        bc.announce();
 
         // start reading input from user
         try {
@@ -53,30 +67,28 @@ class Blockchain {
             String file = "";
             // wait 5sec, while system starts- its a hack, I know...
             Thread.sleep(5000);
+            // file to load given on the command line, so we don't need the prompt
+            if (args.length > 1) {
+                new BulkIngest(bc).ingest(new File(args[1]));
+            }
             // new buffered reader to read user input
             BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
             // print instructions to user
-            int counter = 0;
+            long counter = 0;
             System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify>\n");
             // wait for user input
             while (true) {
                 // read next input from user
                 input = userInput.readLine();
+                if (input == null) {
+                    // no more input (stdin closed, or not a terminal)- keep the node running without the prompt
+                    Thread.currentThread().join();
+                }
                 // if user inputs an R
                 if (input.indexOf("R") == 0) {
-                    // new buffered reader to read input from specified file
+                    // stream the file through the ingest pipeline, multicast as new unverified blocks to nodes
                     try {
-                        BufferedReader fr = new BufferedReader(new FileReader("./" + input.substring(2)));
-                        String line = "";
-                        do {
-                            // read next line from file
-                            line = fr.readLine();
-                            if (line != null) {
-                                // if line is not null, multicast as new unverified block to nodes
-                                counter++;
-                                new BlockchainNodeMulticast(line.toString(), bc);
-                            }
-                        } while (line != null); // once you reach null line, youre done reading file
+                        counter += new BulkIngest(bc).ingest(new File("./" + input.substring(2).trim()));
                         System.out.println(counter + " records have been added to unverified blocks.");
                     } catch (IOException ex) {
                         System.out.println("File not found.");
@@ -85,11 +97,22 @@ class Blockchain {
                     BlockchainNode.printBlockchain();
                     System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify>\n");
                 } else if (input.indexOf("V") == 0) {
-                    BlockchainNode.verifyBlockchain();
+                    // "V full" re-audits from the first block, plain V only checks blocks since the last checkpoint
+                    BlockchainNode.verifyBlockchain(input.substring(1).trim().equalsIgnoreCase("full"));
                     System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify>\n");
                 } else if (input.indexOf("C") == 0) {
-                    BlockchainNode.printCredit();
+                    // "C 5" for just the top 5 nodes, plain C for all of them
+                    int k = Integer.MAX_VALUE;
+                    try {
+                        k = Integer.parseInt(input.substring(1).trim());
+                    } catch (NumberFormatException ex) {
+                        // no count given, show everyone
+                    }
+                    BlockchainNode.printCredit(k);
                     System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify>\n");
+                } else if (input.trim().equals("quit")) {
+                    // the shutdown hook tells the other members we're leaving
+                    System.exit(0);
                 } /*else {
                     System.out.println("Command not recognized. Please try again.");
                     System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify>\n");
@@ -101,14 +124,216 @@ class Blockchain {
             e.printStackTrace();
         }
     }
+
+    // the node's side of bench.NodeOps, so the JMH benchmarks can call into the default package
+    // public, so they can create it by name without opening anything up
+    public static class BenchmarkOps implements bench.NodeOps {
+        public BenchmarkOps() {
+        }
+
+        private static BlockchainBlock block(Object b) {
+            return (BlockchainBlock) b;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<BlockchainBlock> blocks(List<?> l) {
+            return (List<BlockchainBlock>) l;
+        }
+
+        public Object newBlock() {
+            return new BlockchainBlock();
+        }
+
+        public void setBlockId(Object b, String id) {
+            block(b).setBlockId(id);
+        }
+
+        public void setCreateTime(Object b, long millis) {
+            block(b).setCreateTime(String.valueOf(millis));
+        }
+
+        public void setCreatingProcessId(Object b, int pid) {
+            block(b).setCreatingProcessId(String.valueOf(pid));
+        }
+
+        public void setPreviousBlockHash(Object b, String hash) {
+            block(b).setPreviousBlockHash(hash);
+        }
+
+        public void setNonce(Object b, long nonce) {
+            block(b).setNonce(nonce);
+        }
+
+        public void setDifficulty(Object b, int difficulty) {
+            block(b).setDifficulty(difficulty);
+        }
+
+        public void setSealTime(Object b, long millis) {
+            block(b).setSealTime(millis);
+        }
+
+        public void setBlockHash(Object b, String hash) {
+            block(b).setBlockHash(hash);
+        }
+
+        public void setSolvedProcessId(Object b, int pid) {
+            block(b).setSolvedProcessId(String.valueOf(pid));
+        }
+
+        public void setRecords(Object b, List<?> records) {
+            block(b).setRecords(blocks(records));
+            block(b).setMerkleRoot(Merkle.root(blocks(records)));
+        }
+
+        public String calc(Object b) {
+            return CalcHashHelper.calc(block(b));
+        }
+
+        public byte[] hash(Object b) {
+            return CalcHashHelper.hash(block(b));
+        }
+
+        public MessageDigest prefixState(Object b) {
+            try {
+                return new BlockHeader(block(b)).getPrefixState();
+            } catch (CloneNotSupportedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public void putLong(byte[] buf, int off, long v) {
+            BlockHeader.putLong(buf, off, v);
+        }
+
+        public boolean meetsTarget(byte[] hash, int difficulty) {
+            return Difficulty.meetsTarget(hash, difficulty);
+        }
+
+        public Object createXml() {
+            return new CreateXml();
+        }
+
+        public Object createBlock(Object createXml, String line, int pid) {
+            return ((CreateXml) createXml).createBlock(line, pid);
+        }
+
+        public Object createSignedBlock(Object createXml, String line, int pid, PrivateKey key) {
+            return ((CreateXml) createXml).createSignedBlock(line, pid, key);
+        }
+
+        public String marshalFromBlockchainBlock(Object createXml, Object b) {
+            return ((CreateXml) createXml).marshalFromBlockchainBlock(block(b));
+        }
+
+        public String marshal(Object o) {
+            try {
+                return XmlSerializer.getInstance().marshal(o);
+            } catch (JAXBException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public Object unmarshalBlock(String xml) {
+            try {
+                return XmlSerializer.getInstance().unmarshal(xml, BlockchainBlock.class);
+            } catch (JAXBException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public byte[] encode(Object o) {
+            try {
+                return WireProtocol.encode(o);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        public Object readFrame(InputStream in) {
+            try {
+                return WireProtocol.readFrame(in);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        public Object configuredScheme() {
+            return SignatureScheme.CONFIGURED;
+        }
+
+        public Object scheme(String name) {
+            return SignatureScheme.forName(name);
+        }
+
+        public KeyPair generateKeyPair(Object scheme) {
+            try {
+                return ((SignatureScheme) scheme).generateKeyPair();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public byte[] sign(byte[] data, PrivateKey key, Object scheme) {
+            try {
+                return SignatureHelper.sign(data, key, (SignatureScheme) scheme);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public boolean verify(byte[] data, PublicKey key, byte[] sig, Object scheme) {
+            try {
+                return SignatureHelper.verify(data, key, sig, (SignatureScheme) scheme);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public void storeKey(int pid, PublicKey key) {
+            PublicKeyStore.storeKey(new CreateXml().createKeyHash(pid, key));
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<Object> openLedger(File dir) {
+            try {
+                return (List<Object>) (List<?>) Ledger.open(dir);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        public void flushLedger(List<Object> ledger) {
+            ((Ledger) (List<?>) ledger).flush();
+        }
+
+        public boolean verifyChain(List<Object> chain) {
+            return ChainVerifier.verify(blocks(chain), 0, chain.size()).isValid();
+        }
+
+        public void unverifiedPool() {
+            new UnverifiedBlockConsumer(0, null);
+        }
+
+        public void addUnverified(Object b) {
+            UnverifiedBlockConsumer.getUnverifiedQueue().add(block(b));
+        }
+
+        public Object mine(Object b) {
+            return MiningEngine.getInstance().mine(block(b));
+        }
+    }
 }
 
 class BlockchainNode {
-    private static int numProcesses = 3; // number of processes
     private static UnverifiedBlockConsumer unverifiedBlockConsumer; // consumer to do "work"
     private static VerifiedBlockServer verifiedBlockServer; // verified block server, to manage verified blocks
     private static PublicKeyStore publicKeyStore; // to store public keys
-    private static Stack<BlockchainBlock> blockchainStack; // stack to store full blockchain
+    private static Ledger blockchain; // full blockchain, kept in the ledger on disk
+    private static volatile ChainTip tip = ChainTip.EMPTY; // last block in the chain, replaced on every append
+    private static CreditLedger credit; // blocks solved by each node, updated on every append
+    private static DuplicateFilter duplicates; // ids of every block and record in the chain
+    private static final Metrics.Counter DUPLICATES = Metrics.getInstance().counter(
+        "blockchain_duplicate_blocks_total", "blocks turned away because they repeat a block or record in our chain");
     private static KeyPair keyPair; // this blockchain node's public and private keys
     private static int pid; // process id of this node
     private static int verifiedBlockPort; // port number for this node's verified block server
@@ -119,56 +344,58 @@ class BlockchainNode {
         // set pid of BlockchainNode
         setPid(pid);
 
-        // create blockchainStack to store blockchain
-        blockchainStack = new Stack<>();
+        // open this node's ledger, each node keeps its own copy of the blockchain
+        // -Dblockchain.ledgerDir to override
+        try {
+            blockchain = Ledger.open(new File(System.getProperty("blockchain.ledgerDir", "ledger-P" + pid)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("can't open ledger", ex);
+        }
+        tip = ChainTip.of(blockchain);
+        credit = CreditLedger.of(blockchain);
+        duplicates = DuplicateFilter.of(blockchain);
 
+        // find out who else is in the cluster, and where we listen
+        Membership.getInstance().load(pid);
         // get port numbers
         setPorts();
+        // serve metrics over JMX and on localhost, -Dblockchain.metricsPort to pick the port
+        Metrics.getInstance().start(Ports.getInstance().getMetricsPort(pid));
+        Metrics.getInstance().gauge("blockchain_chain_height", "height of the last block in our chain",
+            () -> tip.getHeight());
 
-        // tell BlockchainNodeMulticast the number of processes
-        BlockchainNodeMulticast.setNumProcesses(numProcesses);
         // create public, private keys
         this.getInstanceKeys();
         // start various servers and consumers for blockchain workflow
         this.startServerandConsumer();
+        // gossiping, so every so often ask a random member for anything we've missed
+        if (Gossip.ENABLED) {
+            Gossip.startRepair(this);
+        }
+        // say goodbye on the way out, so the others stop sending to us
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> BlockchainNodeMulticast.leave(getPid(), getPublicKey()), "leave"));
     }
 
-    // only run by pid 2
-    public void startPublicKeySimulcast() {
-        try {
-            // sleep for 3 sec.. allow all nodes to start
-            Thread.sleep(3000);
-        } catch (Exception ex) {
-            System.out.println("interrupt exception: " + ex);
-        }
-        // send pid #2 public key to other nodes
-        // this will kick off other nodes sending their keys to all nodes
+    // send our public key, and where we are, to every member and seed
+    // members that hadn't heard of us answer with their own, see PublicKeyStore.addKey
+    public void announce() {
         new BlockchainNodeMulticast(getPid(), getPublicKey());
     }
 
     public static void printBlockchain() {
-        for (BlockchainBlock b : blockchainStack) {
+        for (BlockchainBlock b : blockchain) {
             System.out.println(b.toString());
         }
     }
 
-    public static void printCredit() {
-        int process0 = 0;
-        int process1 = 0;
-        int process2 = 0;
-
-        for (BlockchainBlock b : blockchainStack) {
-            int solvedProcess = Integer.valueOf(b.getSolvedProcessId());
-            if (solvedProcess == 0) {
-                process0++;
-            } else if (solvedProcess == 1) {
-                process1++;
-            } else if (solvedProcess == 2) {
-                process2++;
-            }
+    // print credit for the k nodes that have solved the most blocks, most first
+    public static void printCredit(int k) {
+        StringBuilder sb = new StringBuilder("Verification credit:");
+        int[] top = credit.top(k);
+        for (int i = 0; i < top.length; i++) {
+            sb.append(i == 0 ? " " : ",").append("P").append(top[i]).append("=").append(credit.get(top[i]));
         }
-
-        System.out.println("Verification credit: P0=" + process0 + ",P1=" + process1 + ",P2=" + process2);
+        System.out.println(sb);
     }
 
     private void getInstanceKeys() {
@@ -178,86 +405,127 @@ class BlockchainNode {
 
     public void startServerandConsumer() {
         // store instance of public key store, unverified block server, and unverified block consumer
+        // all three listen on the one shared NioServer selector thread
         publicKeyStore = new PublicKeyStore(this.getPid(), this);
-        // initialize thread
-        new Thread(publicKeyStore).start();
+        // start listening
+        publicKeyStore.start();
         // create new unverified block consumer
-        unverifiedBlockConsumer = new UnverifiedBlockConsumer(Ports.getInstance().getUnverifiedBlockPort(pid), this);
-        // initialize thread
-        new Thread(unverifiedBlockConsumer).start();
+        unverifiedBlockConsumer = new UnverifiedBlockConsumer(unverifiedBlockPort, this);
+        // start listening
+        unverifiedBlockConsumer.start();
         // create new verified block server
         verifiedBlockServer = new VerifiedBlockServer(this);
-        // initialize thread
-        new Thread(verifiedBlockServer).start();
+        // start listening
+        verifiedBlockServer.start();
     }
 
-    public static void addBlockchainBlock(BlockchainBlock bcBlock) {
-        // method to add new block to this nodes copy of the blockchain block
-        blockchainStack.add(bcBlock);
+    // method to add new block to this nodes copy of the blockchain block
+    // hash is the block's hash from ChainVerifier.checkWork, so its proof of work and merkle root
+    // have already been checked, once, when it was received. it's kept in the block from here on
+    // returns false if the block declares a difficulty other than the one retargeting gives for its height
+    // or if it's already in the chain, or has records that are- someone else sealed them first
+    // or if it doesn't go on top of our tip- its previousBlockHash has to be the hash of our last block
+    // or if any of its records' signatures don't match their creators' keys
+    public static boolean addBlockchainBlock(BlockchainBlock bcBlock, String hash) {
+        // checked before we take the lock, a block of 64 records is 64 signatures
+        if (!ChainVerifier.verifySignatures(bcBlock)) {
+            System.out.println("Block " + bcBlock.getBlockId() + " has a record with a bad signature, not added to blockchain");
+            return false;
+        }
+        return append(bcBlock, hash);
+    }
+
+    // the rest of addBlockchainBlock's checks, and the append, one block at a time
+    private static synchronized boolean append(BlockchainBlock bcBlock, String hash) {
+        if (!tip.getHash().equalsIgnoreCase(String.valueOf(bcBlock.getPreviousBlockHash()))) {
+            System.out.println("Block " + bcBlock.getBlockId() + " doesn't follow block " + tip.getHeight()
+                + " in the chain, not added to blockchain");
+            return false;
+        }
+        int duplicate = duplicates.find(bcBlock);
+        if (duplicate >= 0) {
+            System.out.println("Block " + bcBlock.getBlockId() + " repeats block " + duplicate + " in the chain, not added to blockchain");
+            DUPLICATES.increment();
+            return false;
+        }
+        int required = Difficulty.required(blockchain, tip.getHeight() + 1);
+        if (bcBlock.getDifficulty() != required) {
+            System.out.println("Block " + bcBlock.getBlockId() + " has difficulty " + bcBlock.getDifficulty()
+                + ", needs " + required + ", not added to blockchain");
+            return false;
+        }
+        bcBlock.setBlockHash(hash);
+        // the ledger writes it to disk in the background
+        blockchain.add(bcBlock);
+        tip = tip.next(bcBlock);
+        credit.add(bcBlock);
+        duplicates.add(bcBlock, tip.getHeight());
+        Solve.chained(bcBlock);
         System.out.print("Enter R <filename> to read file, L to list, C to get credit, V to verify> ");
+        return true;
+    }
+
+    // last block in the chain, never blocks
+    public static ChainTip getTip() {
+        return tip;
+    }
+
+    // is the block with this id already in our chain
+    public static boolean contains(String blockId) {
+        return blockchain.indexOf(blockId) >= 0;
+    }
+
+    // block at this height in our chain
+    public static BlockchainBlock getBlock(int height) {
+        return blockchain.get(height);
     }
 
-    public static void verifyBlockchain() {
-        boolean verified = true;
-        for (BlockchainBlock b : blockchainStack) {
-            String solvedPid = b.getSolvedProcessId();
-            b.setSolvedProcessId(null);
-            String hex = CalcHashHelper.calc(b);
-            if (!hex.substring(0,1).equals("F")) {
-                verified = false;
+    // audit the chain- proof of work, links between blocks, and creator signatures
+    // split across all cores by ChainVerifier
+    // only blocks after the last verified checkpoint are checked, unless full is set
+    public static void verifyBlockchain(boolean full) {
+        VerifyCheckpoint checkpoint = VerifyCheckpoint.load(blockchain.getDir());
+        int from = 0;
+        if (!full && checkpoint != null) {
+            if (checkpoint.matches(blockchain)) {
+                from = checkpoint.getHeight() + 1;
+            } else {
+                System.out.println("Verification checkpoint " + checkpoint + " doesn't match the chain, doing a full audit");
             }
-            b.setSolvedProcessId(solvedPid);
         }
-        if (verified) {
+        int to = blockchain.size();
+        ChainVerifier.Result result = ChainVerifier.verify(blockchain, from, to);
+        System.out.println(result);
+        // move the checkpoint up to the last good block
+        int good = result.isValid() ? to - 1 : result.getFirstBad() - 1;
+        if (good >= 0 && (checkpoint == null || good != checkpoint.getHeight())) {
+            VerifyCheckpoint.at(blockchain, good).save(blockchain.getDir());
+        }
+        if (result.isValid()) {
             System.out.println("Blockchain verified!");
         } else {
             System.out.println("Error: Blockchain NOT verified!");
         }
     }
 
-    public void exportBlockchainToFile() {
-        // get old file
-        File old = new File("./BlockchainLedger.xml");
-        // and delete
-        old.delete();
-        // create new file to write to
-        File file = new File("./BlockchainLedger.xml");
-        try {
-            // new file writer so we can write to file
-            FileWriter f = new FileWriter(file, false);
-            // write new block to file
-            for (BlockchainBlock b : blockchainStack) {
-                CreateXml cXml = new CreateXml();
-                f.write(cXml.marshalFromBlockchainBlock(b));
-                f.write("\n");
-            }
-            // close the file
-            f.close();
-        } catch (IOException ex) {
-            // catch any exceptions, print to console
-            System.out.println("Error printing to disk: " + ex);
-            ex.printStackTrace();
-        }
+    // difficulty for the next block, retargeted from solve times in the chain
+    public static synchronized int nextDifficulty() {
+        return Difficulty.next(blockchain);
     }
 
     // this method returns hash of the last block in blockchain
     // helper method to add last hash to new unverified block
+    // "0" if the chain is empty
     public String peekLastHash() {
-        // if there are blockchains in stack
-        if (blockchainStack.size() > 0) {
-            // return the the hash of it
-            return CalcHashHelper.calc(blockchainStack.peek());
-        } else {
-            // value we are looking to match in work hash with random string
-            return String.valueOf(0b0000);
-        }
+        return tip.getHash();
     }
 
     private void setPorts() {
         // get required port numbers, stored in BlockchainNode instance
-        unverifiedBlockPort = Ports.getInstance().getUnverifiedBlockPort(pid);
-        verifiedBlockPort = Ports.getInstance().getVerifiedBlockPort(pid);
-        publicKeyServerPort = Ports.getInstance().getPublicKeyServerPort(pid);
+        Member self = Membership.getInstance().getSelf();
+        unverifiedBlockPort = self.getUnverifiedPort();
+        verifiedBlockPort = self.getVerifiedPort();
+        publicKeyServerPort = self.getKeyPort();
     }
 
     // method to set pid of this node
@@ -287,849 +555,4918 @@ class BlockchainNode {
     }
 }
 
+// the last block in the chain- its height, its hash, and the total work in the chain up to it
+// never changed, a new one is made for each block appended
+class ChainTip {
+    // empty chain, new blocks point back to hash "0"
+    public static final ChainTip EMPTY = new ChainTip(-1, String.valueOf(0b0000), BigInteger.ZERO);
+    private final int height; // height of the last block, -1 for an empty chain
+    private final String hash; // hex hash of the last block
+    private final BigInteger work; // expected hashes to produce the chain, sum of 2^difficulty
+
+    private ChainTip(int height, String hash, BigInteger work) {
+        this.height = height;
+        this.hash = hash;
+        this.work = work;
+    }
 
-// this class parses and creates xml to be marshalled and sent around
-class CreateXml {
-    // own instance of ParseText, which parses string input
-    private static ParseText pt;
+    // tip of a chain already in the ledger, work is summed from the index so no blocks are decoded
+    // except the last one
+    public static ChainTip of(Ledger ledger) {
+        BlockchainBlock last = ledger.peek();
+        if (last == null) {
+            return EMPTY;
+        }
+        BigInteger work = BigInteger.ZERO;
+        for (int i = 0; i < ledger.size(); i++) {
+            work = work.add(BigInteger.ONE.shiftLeft(ledger.difficulty(i)));
+        }
+        String hash = last.getBlockHash() != null ? last.getBlockHash() : CalcHashHelper.calc(last);
+        return new ChainTip(ledger.size() - 1, hash, work);
+    }
 
-    public CreateXml() {
+    // tip after appending this block, which already has its hash set
+    public ChainTip next(BlockchainBlock b) {
+        return new ChainTip(height + 1, b.getBlockHash(), work.add(BigInteger.ONE.shiftLeft(Ledger.difficulty(b))));
     }
 
-    // method to return signed data
-    // takes in data, and the key to sign it with
-    private static byte[] signData(byte[] data, PrivateKey key) throws Exception {
-        // create new signature using SHA1/RSA
-        Signature signer = Signature.getInstance("SHA1withRSA");
-        // initialize object to sign, using passed in private key
-        signer.initSign(key);
-        // update data to be signed- add in data to signature
-        signer.update(data);
-        // sign data and return from method
-        return signer.sign();
+    public int getHeight() {
+        return height;
     }
 
-    // this method to marshall new *unverified* block - which is sent to method as string
-    public String marshalFromString(String input, BlockchainNode originNode) {
-        // create new BlockchainBlock object
-        // and marshall to XML
-        pt = new ParseText(input);
-        try {
-            BlockchainBlock block = new BlockchainBlock();
-            // new instance of JAXB context, using BlockchainBlock class
-            // this specified which class we are going to be marshalling
-            JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
-            // create a new marshaller using JAXBContext initialized above
-            // again, this will use BlockchainBlock class
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            // new StringWriter to use with marshalling process
-            StringWriter sw = new StringWriter();
-            // we want nice output on the marshalled data
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+    public String getHash() {
+        return hash;
+    }
 
-            // null string and null signed SHA-256 show this is unverified block
-            // previousBlockHash is set in solve() method, set to null as precaution now
-            block.setPreviousBlockHash(null);
-            // set randomString to null, to indicate unsolved
-            block.setRandomString(null);
-            // add create time
-            block.setCreateTime(String.valueOf(System.currentTimeMillis()));
-            // add pid of creating process
-            block.setCreatingProcessId(String.valueOf(originNode.getPid()));
-            // cretae random string to use for block id
-            block.setBlockId(new String(UUID.randomUUID().toString()));
-            // fill in data from file
-            block.setFirstName(pt.firstName);
-            block.setLastName(pt.lastName);
-            block.setDob(pt.dob);
-            block.setSsNum(pt.ssNum);
-            block.setDiagnosis(pt.diagnosis);
-            block.setTreatment(pt.treatment);
-            block.setPrescription(pt.prescription);
-            // precaution to set signed hash to null for now
-            // this will be included in the data that gets signed
-            // so recieving process will need pull out signed hash, save it
-            // and set signed hash to null in received block
-            // in order to verify properly
-            block.setSignedHash(null);
-            // precaution to set solving process to null as well
-            block.setSolvedProcessId(null);
-            // lets marshall this block, shall we?
-            marshaller.marshal(block, sw);
-            // create messageDigest to get sha-256 digest of block (including signed hash == null)
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            // use previously marshalled block, make it a string, and then a byte array
-            messageDigest.update(sw.toString().getBytes());
-            // create digital signature
-            byte[] signature = signData(messageDigest.digest(), originNode.getPrivateKey());
-            // encode this in base64, and add to the block
-            block.setSignedHash(Base64.getEncoder().encodeToString(signature));
-            // helper println of signed hash
-            //System.out.println("signed hash: " + block.getSignedHash());
+    public BigInteger getWork() {
+        return work;
+    }
 
-            // re-marshall this new block, that includes signature
-            JAXBContext jaxbContextFinal = JAXBContext.newInstance(BlockchainBlock.class);
-            // create a new marshaller using JAXBContext initialized above
-            // again, this will use BlockchainBlock class
-            Marshaller marshallerFinal = jaxbContext.createMarshaller();
-            // new StringWriter to use with marshalling process
-            StringWriter swFinal = new StringWriter();
-            // we want nice output on the marshalled data
-            marshallerFinal.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshallerFinal.marshal(block, swFinal);
-            // return block to calling method
-            // this block *includes* the signature
-            // again, unmarshalling process will need to set signature to null to verify
-            return swFinal.toString();
-        } catch (Exception ex) {
-            // catch exceptions and print debugging stuff
-            System.out.println("CreateXml exception");
-            System.out.println(ex);
-            ex.printStackTrace();
-            return "";
+    public String toString() {
+        return "height=" + height + ", hash=" + hash + ", work=" + work;
+    }
+}
+
+// verification credit- blocks solved by each node, kept up to date as blocks are appended
+// nodes are also kept ranked by credit, most first, so the top k is just the first k
+// each block adds one credit, so a node only ever moves up past nodes that had the same credit as it
+class CreditLedger {
+    private IntLongHashMap credits; // node id -> blocks solved
+    private IntLongHashMap positions; // node id -> where it is in ranked
+    private int[] ranked; // node ids, most credit first, ties in the order they got there
+    private int nodes; // number of nodes in ranked
+
+    public CreditLedger() {
+        credits = new IntLongHashMap(16);
+        positions = new IntLongHashMap(16);
+        ranked = new int[16];
+    }
+
+    // tally the credit for every block in the ledger, done once on startup
+    // the solver of each block is in the ledger's index, so no block is read
+    public static CreditLedger of(Ledger ledger) {
+        long start = System.nanoTime();
+        CreditLedger credit = new CreditLedger();
+        int size = ledger.size();
+        for (int i = 0; i < size; i++) {
+            int solver = ledger.solver(i);
+            if (solver >= 0) {
+                credit.add(solver);
+            }
         }
+        System.out.println("Tallied credit for " + credit.size() + " nodes over " + ledger.size() + " blocks in "
+            + (System.nanoTime() - start) / 1000000 + "ms");
+        return credit;
     }
 
-    // this marshalls newly verified block
-    public String marshalFromBlockchainBlock(BlockchainBlock newBlock) {
-        try {
-            // new JAXBContext- to specify we are marshalling BlockchainBlock
-            JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
-            // create new marshaller using the context of blockchainblock
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            // string writer helper
-            StringWriter sw = new StringWriter();
-            // we want nice output
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            // marshall the block- put into string writer
-            marshaller.marshal(newBlock, sw);
-            //System.out.println("marshalled newly verified block: " + sw.toString());
-            // return marshalled string to calling method
-            return sw.toString();
-        } catch (Exception ex) {
-            // exception handling
-            System.out.println("CreateXml exception");
-            System.out.println(ex);
-            ex.printStackTrace();
-            return "";
+    // credit the node that solved this block, blocks without a solver don't count
+    public void add(BlockchainBlock b) {
+        int solver = Ledger.solver(b);
+        if (solver >= 0) {
+            add(solver);
         }
+    }
 
+    // one more block for this node
+    public synchronized void add(int node) {
+        long credit = credits.get(node, -1);
+        if (credit < 0) {
+            // new node, it starts at the bottom with nothing
+            if (nodes == ranked.length) {
+                ranked = Arrays.copyOf(ranked, nodes * 2);
+            }
+            ranked[nodes] = node;
+            positions.put(node, nodes);
+            nodes++;
+            credit = 0;
+        }
+        // swap with the first node that has the same credit, then it's ahead of all of them
+        int from = (int) positions.get(node, -1);
+        int to = firstWith(credit, from);
+        int other = ranked[to];
+        ranked[to] = node;
+        ranked[from] = other;
+        positions.put(node, to);
+        positions.put(other, from);
+        credits.put(node, credit + 1);
     }
 
-    // method to marhsall public key
-    public String marshalPublicKey(int pid, PublicKey pub) {
-        // creat XML from public key
-        // first, we need to create a new instance of KeyHash
-        // which is a class to allow for the marshalling of keys
-        // KeyHash will be populated with pid and public key passed in as method args
-        KeyHash keyHash = new KeyHash();
-        keyHash.setPid(pid);
-        keyHash.setPublicKey(pub.getEncoded());
-        try {
-            // new instance of JAXBContext, this time specifying KeyHash
-            JAXBContext jaxbContext = JAXBContext.newInstance(KeyHash.class);
-            // new marshaller using the KeyHash context
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            // string writer helper
-            StringWriter sw = new StringWriter();
-            // again, we really like nice output
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            // marshal this, please
-            marshaller.marshal(keyHash, sw);
-            // some pretty debug for command line
-            //System.out.println("-------------------------------");
-            //System.out.println("marshalled new block: " + sw.toString());
-            // return marshalled data as string to calling method
-            return sw.toString();
-        } catch (Exception ex) {
-            // exception handling
-            System.out.println("CreateXml exception");
-            System.out.println(ex);
-            ex.printStackTrace();
-            return "";
+    // first position in ranked, at or before end, whose node has this credit
+    // everything before it has more, so binary search
+    private int firstWith(long credit, int end) {
+        int lo = 0;
+        int hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (credits.get(ranked[mid], 0) > credit) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
+        return lo;
     }
 
-    class ParseText {
-        // variables to store data in
-        private String firstName;
-        private String lastName;
-        private String dob;
-        private String ssNum;
-        private String diagnosis;
-        private String treatment;
-        private String prescription;
+    // blocks solved by this node
+    public synchronized long get(int node) {
+        return credits.get(node, 0);
+    }
 
-        private ParseText(String input) {
-            // fancy, very manual string parsing.... I'm sure theres a better way to do this
-            // this will pull all the individual data points from the file
-            int stringPointer = 0;
-            firstName = input.substring(stringPointer, input.indexOf(" "));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            lastName = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            dob = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            ssNum = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            diagnosis = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            treatment = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
-            stringPointer = input.indexOf(" ", stringPointer + 1);
-            prescription = input.substring(stringPointer);
-        }
+    // the k nodes with the most credit, most first
+    public synchronized int[] top(int k) {
+        return Arrays.copyOf(ranked, Math.min(Math.max(k, 0), nodes));
+    }
+
+    // number of nodes with any credit
+    public synchronized int size() {
+        return nodes;
     }
 }
 
-class BlockchainNodeMulticast {
-    // multicast for all blockchain nodes
-    // set some class variables
-    private static int numProcesses; // store for # processes
-    private String serverName = "localhost"; // server name will be localhost
-    private int q_len = 6; // length of queue
-    private int basePort; // base port to use- dynamically determined based on data sending
-    private String newBlock; // place to store string of new block, when passed in
-    private String xmlToSend; // this is the xml we are going to multicast
-    private BlockchainNode originNode; // originiating node
-
-    // method to start multicast of newly *unverified* blockchain block
-    BlockchainNodeMulticast(String input, BlockchainNode bcNode) {
-        // received in XML for new Block
-        // get base port for unverified blocks
-        basePort = Ports.getInstance().getUnverifiedBlockBasePort();
-        newBlock = input;
-        // set origin node variable to the originating node
-        originNode = bcNode;
-        // spaw new multicast worker thread with correct args
-        // this thread will kick off the multicast party
-        new Thread(new MulticastWorker(input, bcNode)).start();
-    }
-
-    // method to start multicast of newly verified blockchain block
-    BlockchainNodeMulticast(BlockchainBlock newBlockchainBlock) {
-        //newBlock = newBlockchainBlock;
-        // get base port for verified blocks to be sent on
-        basePort = Ports.getInstance().getVerifiedBlockBasePort();
-        // start new multicast worker thread to get this multicast party started
-        new Thread(new MulticastWorker(newBlockchainBlock)).start();
+// blockIds and record ids already in the chain, so a block that repeats any of them
+// (the same block again, or a competing solution for records someone else sealed first) is turned away
+// before it's appended. a bloom filter answers for ids we've never seen, which is nearly all of them,
+// and anything it might have seen is looked up in an exact index of id hash -> height, then checked
+// against the block at that height
+class DuplicateFilter {
+    private static final int BITS_PER_ID = 16; // bloom filter size, about a 0.2% false positive rate with 4 hashes
+    private Ledger ledger; // chain we're filtering for, to check index hits against
+    private LongIntHashMap heights; // id hash -> height of the first block with that id (or record)
+    private BloomFilter bloom; // the same id hashes
+
+    public DuplicateFilter(Ledger l) {
+        ledger = l;
+        heights = new LongIntHashMap(16);
+        bloom = new BloomFilter(64L * 1024 * BITS_PER_ID);
     }
 
-    // YABMOC - (yet another blockchain multicast overloaded constructor).. this time to send public keys
-    BlockchainNodeMulticast(int pid, PublicKey pub) {
-        // get base port to send public keys on
-        basePort = Ports.getInstance().getPublicKeyServerBasePort();
-        // new multicast worker party thread. to handle sending public key
-        new Thread(new MulticastWorker(pid, pub)).start();
+    // index every block in the ledger, done once on startup
+    // the id hashes come from the ledger's index and records file, so no block is read
+    public static DuplicateFilter of(Ledger ledger) {
+        long start = System.nanoTime();
+        DuplicateFilter filter = new DuplicateFilter(ledger);
+        ledger.forEachId(filter::add);
+        System.out.println("Indexed " + filter.heights.size() + " block and record ids over " + ledger.size() + " blocks in "
+            + (System.nanoTime() - start) / 1000000 + "ms");
+        return filter;
     }
 
-    // helper method to set number of processes
-    public static void setNumProcesses(int num) {
-        numProcesses = num;
+    // height of a block in the chain with this block's id or one of its records, or -1 if there isn't one
+    public synchronized int find(BlockchainBlock b) {
+        int height = find(b.getBlockId());
+        if (height >= 0 || b.getRecords() == null) {
+            return height;
+        }
+        for (String id : b.getRecordIds()) {
+            height = find(id);
+            if (height >= 0) {
+                return height;
+            }
+        }
+        return -1;
     }
 
-    // worker class to multicast
-    class MulticastWorker implements Runnable {
-        // some variables
-        private String message; // message we are going to send
-        private Socket sock; // to hold socket
-        private BlockchainBlock newBlockchainBlock; // blockchain block we are going to send.. if needed
-
-        // overloaded constructor.. to send new blockchian
-        private MulticastWorker(String input, BlockchainNode originNode) {
-            // pass in XML as 'input', store in 'message'
-            message = input;
-            // new CreateXML class to create XML
-            CreateXml createXml = new CreateXml();
-            // create XML for unverified block
-            xmlToSend = createXml.marshalFromString(input, originNode);
+    // height of the block in the chain with this id, or holding a record with it, or -1
+    private int find(String id) {
+        if (id == null) {
+            return -1;
         }
+        long h = Ledger.idHash(id);
+        if (!bloom.mightContain(h)) {
+            return -1;
+        }
+        int height = heights.get(h, -1);
+        // 64 bit hashes can collide, so check its really there
+        if (height < 0) {
+            return -1;
+        }
+        BlockchainBlock b = ledger.get(height);
+        return id.equals(b.getBlockId()) || b.getRecordIds().contains(id) ? height : -1;
+    }
 
-        // overloaded constructor
-        // this constructor takes completed blockchain block, and allows for multicast
-        private MulticastWorker(BlockchainBlock newBlock) {
-            // store new blockchain in instance variable
-            newBlockchainBlock = newBlock;
-            // new create xml instance to do the xml creation stuff
-            CreateXml createXml = new CreateXml();
-            // store this xml to send in instance variable to be read by run method
-            xmlToSend = createXml.marshalFromBlockchainBlock(newBlock);
+    // a block was appended at this height
+    public synchronized void add(BlockchainBlock b, int height) {
+        add(b.getBlockId(), height);
+        if (b.getRecords() != null) {
+            for (String id : b.getRecordIds()) {
+                add(id, height);
+            }
         }
+    }
 
-        // another overloaded constructor- to send the public keys
-        private MulticastWorker(int pid, PublicKey pub) {
-            // new create xml instance
-            CreateXml createXml = new CreateXml();
-            // get me the xml to be sent for public keys. and store it instance var
-            xmlToSend = createXml.marshalPublicKey(pid, pub);
-            // print key to send
-            //System.out.println("public key xml to send: " + xmlToSend);
+    private void add(String id, int height) {
+        if (id != null) {
+            add(Ledger.idHash(id), height);
         }
+    }
 
-        public void run() {
-            try {
-                // for each process - numProcesses was set earlier
-                for (int processId = 0; processId < numProcesses; processId++) {
-                    // multicast to all blockchain servers
-                    // determine port- using the base port
-                    int port = basePort + processId;
-                    // get a new socket
-                    sock = new Socket(serverName, port);
-                    // new printstream, to send xml
-                    PrintStream out = new PrintStream(sock.getOutputStream());
-                    // send that xml, please
-                    out.println(xmlToSend);
-                    // i tried to clean up the socket.. think this is all we need?
-                    sock.close();
-                }
-            } catch (IOException ex) {
-                // more exception stuff
-                System.out.println("multicast worker error");
-                System.out.println(ex);
-                ex.printStackTrace();
-            }
+    // the same hash as the ledger keeps for the id, so the filter can be filled from the ledger's files
+    private void add(long h, int height) {
+        heights.putIfAbsent(h, height);
+        bloom.add(h);
+        if ((long) heights.size() * BITS_PER_ID > bloom.bits()) {
+            // too full to be much use, start again twice the size
+            bloom = new BloomFilter(bloom.bits() * 2);
+            heights.forEachKey(bloom::add);
         }
     }
 }
 
-// class to receive marshalled public key
-// reads in public key
-class PublicKeyStore implements Runnable {
-    // concurrenthashmap to store mapping of all public keys to pid's
-    private static ConcurrentHashMap<Integer, byte[]> pubKeyHashMap;
-    private int port; // port to use
-    private Socket sock; // socket connection
-    int q_len = 6; // length of the queue
-    private BlockchainNode blockchainNode; // blockchain node that owns this class
+// last block a verification found good, kept in BlockchainLedger.chk next to the ledger
+// so the next verification can start after it
+// the file is one line: height hash
+class VerifyCheckpoint {
+    public static final String FILE = "BlockchainLedger.chk";
+    private int height; // height of the last verified block
+    private String hash; // header hash of that block, recomputed when it was verified
+
+    private VerifyCheckpoint(int height, String hash) {
+        this.height = height;
+        this.hash = hash;
+    }
 
-    public PublicKeyStore(int p, BlockchainNode bc) {
-        // set up the concurrenthashmap for public key storage
-        pubKeyHashMap = new ConcurrentHashMap<>();
-        // figure out which port we will look for connection on
-        port = Ports.getInstance().getPublicKeyServerPort(p);
-        // set the blockchian node to the calling process (which passes itself into constructor)
-        blockchainNode = bc;
+    // checkpoint at this height of the chain
+    public static VerifyCheckpoint at(List<BlockchainBlock> chain, int height) {
+        return new VerifyCheckpoint(height, CalcHashHelper.calc(chain.get(height)));
     }
 
-    // return public key for specified pid
-    public static byte[] getPublicKey(int pid) {
-        return pubKeyHashMap.get(pid);
+    // checkpoint saved in this directory, null if there isn't one or it can't be read
+    public static VerifyCheckpoint load(File dir) {
+        File file = new File(dir, FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String[] parts = in.readLine().trim().split("\\s+");
+            return new VerifyCheckpoint(Integer.parseInt(parts[0]), parts[1]);
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Can't read verification checkpoint " + file + ": " + ex);
+            return null;
+        }
     }
 
-    public void run() {
+    // write to a temp file then rename over the old one, so a crash never leaves half a checkpoint
+    public void save(File dir) {
+        File tmp = new File(dir, FILE + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            out.println(height + " " + hash);
+        } catch (IOException ex) {
+            System.out.println("Can't write verification checkpoint: " + ex);
+            return;
+        }
         try {
-            // make a new server socket, using correct port #
-            ServerSocket servSock = new ServerSocket(port, q_len);
-            while (true) {
-                // wait for a connection from client, accept connection when asked
-                sock = servSock.accept();
-                // spawn new public key store worker when connection started
-                new Thread(new PublicKeyStoreWorker(sock)).start();
-            }
-        } catch (Exception ex) {
-            // exception stuff
-            System.out.println("PublicKeyStore error: " + ex);
-            ex.printStackTrace();
+            java.nio.file.Files.move(tmp.toPath(), new File(dir, FILE).toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Can't write verification checkpoint: " + ex);
         }
     }
 
-    // worker class that actually unmarshalls and adds received keys to instance hash map
-    class PublicKeyStoreWorker implements Runnable {
-        // socket we're using
-        private Socket socket;
-
-        // constructor.. set the socket
-        public PublicKeyStoreWorker(Socket s) {
-            socket = s;
-        }
+    // is the block at our height still the one we verified
+    public boolean matches(List<BlockchainBlock> chain) {
+        return height < chain.size() && hash.equalsIgnoreCase(CalcHashHelper.calc(chain.get(height)));
+    }
 
-        public void run() {
-            try {
-                // make a new buffered reader to read data sent by client to this process
-                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                // to hold input from client
-                String input = "";
-                // string builder. to store each line read from client
-                StringBuilder sb = new StringBuilder();
-                do {
-                    // read next line of input
-                    input = in.readLine();
-                    // if its not null, add it to string builder
-                    if (input != null) {
-                        sb.append(input);
-                    }
-                } while (input != null); // stop it when you get a null input
-
-                // create reader object to unmarshal
-                StringReader reader = new StringReader(sb.toString());
-                // new context for unmarshalling- using KeyHash class
-                JAXBContext jaxbContext = JAXBContext.newInstance(KeyHash.class);
-                // new unmarshaller using KeyHash context created above
-                Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-                // create new KeyHash class by unmarshalling data received from client
-                KeyHash pubKeyHash = (KeyHash) unmarshaller.unmarshal(reader);
-                // notify user new public key received
-                System.out.println("Received public key: " + pubKeyHash.getPid());
-                // add this new pid/publickey pair to hash map
-                pubKeyHashMap.put(pubKeyHash.getPid(), pubKeyHash.getPublicKey());
-                // clean up and close reader
-                reader.close();
-                // if we received process 2's key, and we are not process 2
-                // send our public key to other nodes
-                // this ensures all nodes get eachothers keys
-                if (pubKeyHash.getPid() == 2 && blockchainNode.getPid() != 2)  {
-                    int p = blockchainNode.getPid();
-                    PublicKey pub = blockchainNode.getPublicKey();
-                    // multicast this nodes' public keys
-                    new BlockchainNodeMulticast(p, pub);
-                }
-            } catch (Exception ex) {
-                // exception stuff
-                System.out.println("PublicKeyStoreWorker error: " + ex);
-                ex.printStackTrace();
-            }
-        }
+    public int getHeight() {
+        return height;
     }
-}
 
-// class to manage verified blocks
-class VerifiedBlockServer implements Runnable {
-    private int pid; // process id
-    private int port; // port to use
-    private int q_len = 6; // queue length
-    private Socket sock; // to store socket connection
-    private BlockchainNode blockchainNode; // calling blockchain node - passed in constructor
+    public String getHash() {
+        return hash;
+    }
 
-    // constructor
-    public VerifiedBlockServer(BlockchainNode bcNode) {
-        pid = bcNode.getPid(); // add pid
-        port = Ports.getInstance().getVerifiedBlockPort(pid); // get port number to listen on
-        blockchainNode = bcNode; // creating node
+    public String toString() {
+        return "height=" + height + ", hash=" + hash;
     }
+}
 
-    public void run() {
-        // run method
-        try {
-            // new server socket created
-            ServerSocket servSock = new ServerSocket(port, q_len);
-            while (true) {
-                // infinite loop- keep waiting for multicast client to connect
-                sock = servSock.accept(); // blocks
-                // once connected, spawn verifiedblockworker thread to handle
-                new Thread(new VerifiedBlockWorker(sock)).start();
-            }
-        } catch (IOException ex) {
-            // exception stuff
-            System.out.println(ex);
-            ex.printStackTrace();
+// verifies a range of the chain in parallel on the common fork join pool
+// each block's header is rehashed and checked against its difficulty, its merkle root against its
+// records, its previousBlockHash against the hash of the block before it, and the signature on
+// each record against its creator's public key
+// blocks are never changed- signatures are checked against an unsigned copy
+class ChainVerifier {
+    // blocks per task, ranges bigger than this are split in two
+    private static final int THRESHOLD = Integer.getInteger("blockchain.verifyChunk", 256);
+
+    // what a verification found
+    public static class Result {
+        private int from; // first height checked
+        private int blocks; // number of blocks checked
+        private int badWork; // hash or merkle root doesn't match, misses its difficulty target, or has the wrong difficulty
+        private int badLink; // previousBlockHash isn't the hash of the block before
+        private int badSignature; // signature doesn't verify, or no key for the creator
+        private int firstBad = -1; // lowest height that failed a check, -1 if none
+        private long nanos; // time taken
+
+        private Result(int from) {
+            this.from = from;
         }
-    }
 
-    // worker class to handle received verified block
-    class VerifiedBlockWorker implements Runnable {
-        // socket we are connected on
-        private Socket sock;
+        public boolean isValid() {
+            return badWork == 0 && badLink == 0 && badSignature == 0;
+        }
 
-        // constructor
-        private VerifiedBlockWorker(Socket s) {
-            // set socket connection instance variable
-            sock = s;
+        public int getFrom() {
+            return from;
         }
 
-        public void run() {
-            // run method implementation
-            try {
-                // new buffered reader, to read in data from client
-                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                // keeper of next line input
-                String input = "";
-                // string builder, to build our input, from multiple lines
-                StringBuilder sb = new StringBuilder();
-                do {
-                    // read next line
-                    input = in.readLine();
-                    // if its not null, append to the string builder
-                    if (input != null) {
-                        sb.append(input);
-                    }
-                } while (input != null); // stop once we read in a null string
-                //System.out.println("unverified block received: " + sb.toString());
-                // create reader object to unmarshal
-                StringReader reader = new StringReader(sb.toString());
-                // new jaxbcontext, BlockchianBlock since that is what we are unmarshalling to
-                JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
-                // new unmarshaller, using blockchainblock context above
-                Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-                // create new blockchian block from unmarshalled received data
-                BlockchainBlock newBlock = (BlockchainBlock) unmarshaller.unmarshal(reader);
-                // clean up
-                reader.close();
-                System.out.println("received new solved block, blockId: " + newBlock.getBlockId());
-                // block has been completed
-                // so remove from unverified queue
-                UnverifiedBlockConsumer.removeFromUnverifiedQueue(newBlock.getBlockId());
-                // and add to new BlockchainBlcok
-                BlockchainNode.addBlockchainBlock(newBlock);
-
-                // if we are process 0, write new blockchain to disk
-                if (blockchainNode.getPid() == 0) {
-                    blockchainNode.exportBlockchainToFile();
-                }
-                // close socket when we are done
-                sock.close();
-            } catch (Exception ex) {
-                // exception stuff
-                System.out.println("Verified bock worker exception: " + ex);
-                ex.printStackTrace();
-            }
+        public int getBlocks() {
+            return blocks;
         }
-    }
-}
 
-// class to handle multicast unverified blocks
-class UnverifiedBlockConsumer implements Runnable {
-    // SERVER
-    // class to do "work" on new block
-    private int port; // port we are going to look to receive on
-    private Socket sock; // socket connection
-    int q_len = 6; // queue length
-    private static BlockingQueue<BlockchainBlock> unverifiedQueue; // queue of unverified blocks
-    private BlockchainNode blockchainNode; // creating process
+        public int getFirstBad() {
+            return firstBad;
+        }
 
-    UnverifiedBlockConsumer(int p, BlockchainNode bcNode) {
-        // get instance of new SingleThread executor
-        port = p; // set port
-        unverifiedQueue = new PriorityBlockingQueue<>(); // create new unverified queue of blocks
-        blockchainNode = bcNode; // set owning process
-    }
+        public double getBlocksPerSecond() {
+            return nanos == 0 ? 0 : blocks * 1e9 / nanos;
+        }
 
-    public void run() {
-        // run method
-        // do work in this thread
-        try {
-            // new server socket
-            ServerSocket servSock = new ServerSocket(port, q_len);
-            while (true) {
-                // infinite loop- keep waiting for multicast client to connect
-                sock = servSock.accept(); // blocks
-                // once connected, spawn unverifiedblockworker thread to handle
-                new Thread(new UnverifiedBlockWorker(sock)).start();
+        private void fail(int height) {
+            if (firstBad < 0 || height < firstBad) {
+                firstBad = height;
             }
-        } catch (IOException ex) {
-            System.out.println(ex);
         }
-    }
 
-    // check if blockId is in unverified queue, return boolean
-    public static boolean isUnverified(String blockId) {
-        // new iterator to iterate through unverified blocks
-        Iterator<BlockchainBlock> iter = unverifiedQueue.iterator();
-        // while there is another unverified block in queue
-        while (iter.hasNext()) {
-            // get next
-            BlockchainBlock b = iter.next();
-            // check if id of block equals block id user is asking about
-            if (b.getBlockId().equals(blockId)) {
-                // if it does, return true
-                return true;
+        private Result merge(Result other) {
+            blocks += other.blocks;
+            badWork += other.badWork;
+            badLink += other.badLink;
+            badSignature += other.badSignature;
+            if (other.firstBad >= 0) {
+                fail(other.firstBad);
             }
+            return this;
         }
-        // else no matching block found, so return false
-        return false;
-    }
 
-    // method to remove a specified block from the unverified queue
-    public static void removeFromUnverifiedQueue(String blockId) {
-        // iterate through unverifiedQueue, remove when matches blockId
-        Iterator<BlockchainBlock> iter = unverifiedQueue.iterator();
-        // while there is another unverified block in queue
-        while (iter.hasNext()) {
-            // get next
-            BlockchainBlock b = iter.next();
-            // check if this block id matches block id user is asking to remove
-            if (b.getBlockId().equals(blockId)) {
-                unverifiedQueue.remove(b);
-                // break once the correct id is found and removed
-                break;
-            }
+        public String toString() {
+            return String.format("Verified %d blocks from height %d in %.1fms (%.0f blocks/sec, %d threads): "
+                    + "%d bad proof of work, %d bad links, %d bad signatures%s",
+                blocks, from, nanos / 1e6, getBlocksPerSecond(), ForkJoinPool.getCommonPoolParallelism(),
+                badWork, badLink, badSignature, firstBad < 0 ? "" : ", first bad block at height " + firstBad);
         }
     }
 
-    // method to verify signature
-    public static boolean verifySig(byte[] data, PublicKey key, byte[] sig) throws Exception {
-        // create new Signature- use SHA1/RSA
-        Signature signer = Signature.getInstance("SHA1withRSA");
-        // initialize object to verify- using key
-        signer.initVerify(key);
-        // update data to be verified- (i.e. add in data to key)
-        signer.update(data);
-
-        // return result
-        return (signer.verify(sig));
+    // verify heights [from, to) of the chain
+    public static Result verify(List<BlockchainBlock> chain, int from, int to) {
+        long start = System.nanoTime();
+        Result result = ForkJoinPool.commonPool().invoke(new VerifyTask(chain, from, to));
+        result.nanos = System.nanoTime() - start;
+        return result;
     }
 
-    // worker class to handle new unverified block
-    class UnverifiedBlockWorker implements Runnable {
-        Socket sock; // socket connection
+    // header hash of a block, as hex
+    private static String hash(BlockchainBlock b) {
+        return DatatypeConverter.printHexBinary(CalcHashHelper.hash(b));
+    }
 
-        public UnverifiedBlockWorker(Socket s) {
-            sock = s; // set socket connection
+    // hex hash of a block, if it meets the difficulty it declares, is the hash it claims (if it claims one),
+    // and its merkle root is the root of its records. null if not
+    public static String checkWork(BlockchainBlock b) {
+        byte[] raw = CalcHashHelper.hash(b);
+        String hex = DatatypeConverter.printHexBinary(raw);
+        if (b.getDifficulty() == null || !Difficulty.meetsTarget(raw, b.getDifficulty())
+                || (b.getBlockHash() != null && !b.getBlockHash().equalsIgnoreCase(hex))
+                || !merkleRootMatches(b)) {
+            return null;
         }
+        return hex;
+    }
 
-        // run method is started by newSingleThreadExecutor()
-        // this allows only one thread to execute at at time
-        public void run() {
-            try {
-                // new buffered reader to read in data from clinet
-                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                // string to hold input
-                String input = "";
-                // new string builder to build full input
-                StringBuilder sb = new StringBuilder();
-                do {
-                    // read next line of input
-                    input = in.readLine();
-                    if (input != null) {
-                        // if its not null, add it to the string builder
-                        sb.append(input);
-                    }
-                } while (input != null); // once you get a null string, youre done reading
-
-                // create reader object to unmarshal
-                StringReader reader = new StringReader(sb.toString());
-                // new jaxbcontext, using BlockchainBlock
-                JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
-                // new unmarshaller to unmarshall to BlockchainBlock class
-                Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-                // create new BlockchainBlock from unmarshalled data
-                BlockchainBlock newBlock = (BlockchainBlock) unmarshaller.unmarshal(reader);
-                // clean up
-                reader.close();
-
-                // store block signature
-                byte[] sig = Base64.getDecoder().decode(newBlock.getSignedHash());
-                // remove signature from block (set to null)
-                newBlock.setSignedHash(null);
-
-                Marshaller marshaller = jaxbContext.createMarshaller();
-                // new StringWriter to use with marshalling process
-                StringWriter sw = new StringWriter();
-                // we want nice output on the marshalled data
-                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-                marshaller.marshal(newBlock, sw);
-                // create messageDigest to get sha-256 digest of block (including signed hash == null)
-                try {
-                    // get message digest instance for SHA-256
-                    MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-                    // pull out ID of creating process to
-                    int creatingId = Integer.parseInt(newBlock.getCreatingProcessId());
-                    // add xml for new block to message digest
-                    messageDigest.update(sw.toString().getBytes());
-                    // new instance of X509 encoded key spec
-                    // this will allow us to convery byte[] into public key
-                    // source: https://stackoverflow.com/questions/35867880/convert-byte-array-back-to-public-key
-                    X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(PublicKeyStore.getPublicKey(creatingId));
-                    // new KeyFactory, we are using RSA
-                    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-                    // generate public key from byte[]
-                    PublicKey publicKey = keyFactory.generatePublic(pubKeySpec);
-                    // verify digital signature
-                    if (UnverifiedBlockConsumer.verifySig(messageDigest.digest(), publicKey, sig)) {
-                        // if true, signature verified.. so continue on our way
-                        System.out.println("Signature verified");
-                        // add signed hash back into block
-                        newBlock.setSignedHash(Base64.getEncoder().encodeToString(sig));
-                        if (newBlock.getRandomString() == null) {
-                            // if null random string, this is a new block
-                            // add to unverified queue
-                            System.out.println("Received new unverified block, blockId: " + newBlock.getBlockId());
-                            // add to unverified queue
-                            unverifiedQueue.add(newBlock);
-                            // call solve method on new unverified block- to do work
-                            Solve.getInstance().solve(newBlock, blockchainNode);
-                        } else {
-                            // if not, someone tampered with it... so we just ignore the block
-                            System.out.println("Signature NOT verified. Ignoring new block.");
-                        }
-                    }
-                } catch (Exception ex) {
-                    System.out.println("Error converting public key: " + ex);
-                    ex.printStackTrace();
-                }
-            } catch (IOException ex) {
-                System.out.println(ex);
-            } catch (JAXBException e) {
-                System.out.println("JAXB unverified block worker exception");
-                System.out.println(e);
-                e.printStackTrace();
-            }
-        }
-        // print queue to screen
-        public void printQueue(){
-            System.out.println("PRINT QUEUE:");
-            System.out.println(unverifiedQueue.toString());
+    // a block with records must have the merkle root of exactly those records
+    public static boolean merkleRootMatches(BlockchainBlock b) {
+        if (b.getRecords() == null || b.getMerkleRoot() == null) {
+            return b.getRecords() == null && b.getMerkleRoot() == null;
         }
+        return Merkle.root(b.getRecords()).equalsIgnoreCase(b.getMerkleRoot());
     }
-}
-
-class Solve {
-    private static Solve instance;
 
-    private Solve() {
+    // do the signatures on a block's records (or the block itself, if it has none) match their creators' keys
+    public static boolean verifySignatures(BlockchainBlock b) {
+        if (b.getRecords() == null) {
+            return verifySignature(b);
+        }
+        for (BlockchainBlock r : b.getRecords()) {
+            if (!verifySignature(r)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public static Solve getInstance() {
-        if (instance == null) {
-            instance = new Solve();
+    // does the block's signature match its creator's key
+    // the creator signed the xml of the block before it was solved, with signedHash "null"
+    // the scheme recorded in the block has to be the one the creator's key is for
+    public static boolean verifySignature(BlockchainBlock b) {
+        try {
+            int creatingId = Integer.parseInt(b.getCreatingProcessId());
+            PublicKey key = PublicKeyStore.getDecodedKey(creatingId);
+            SignatureScheme scheme = SignatureScheme.forName(b.getSignatureScheme());
+            if (key == null || scheme != PublicKeyStore.getScheme(creatingId)) {
+                return false;
+            }
+            byte[] sig = Base64.getDecoder().decode(b.getSignedHash());
+            String unsignedXml = XmlSerializer.getInstance().marshal(b.unsignedCopy());
+            byte[] digest = CalcHashHelper.sha256().digest(unsignedXml.getBytes());
+            return UnverifiedBlockConsumer.verifySig(digest, key, sig, scheme);
+        } catch (Exception ex) {
+            // bad creator id, bad base64, bad key... all mean not verified
+            return false;
         }
-        return instance;
     }
 
-    // solve is a synchronized method, so only one thread can execute at a time
-    // i.e. cannot have two threads trying to solve different unverified blocks
-    public synchronized void solve(BlockchainBlock newBlock, BlockchainNode blockchainNode) {
-        String randomString; // random string to try and solve
-        Boolean unsolved = true; // boolean to tell while loop when to end
-        BlockchainBlock workerBlock = newBlock; // the new block we are solving
-
-        // add previous block ID to workerBlock
-        workerBlock.setPreviousBlockHash(blockchainNode.peekLastHash());
+    // verifies a range, splitting it until it is THRESHOLD blocks or less
+    private static class VerifyTask extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        private List<BlockchainBlock> chain;
+        private int from;
+        private int to;
+
+        private VerifyTask(List<BlockchainBlock> chain, int from, int to) {
+            this.chain = chain;
+            this.from = from;
+            this.to = to;
+        }
 
-        while (unsolved) {
-            // generate random string to attempt to solve
-            randomString = new String(UUID.randomUUID().toString());
-            // add the random string to this block
-            workerBlock.setRandomString(randomString);
-            try {
-                // check to make sure current block is not verified yet
-                if (!UnverifiedBlockConsumer.isUnverified(workerBlock.getBlockId())) {
-                    // return if it is
-                    return;
+        protected Result compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                VerifyTask left = new VerifyTask(chain, from, mid);
+                left.fork();
+                Result right = new VerifyTask(chain, mid, to).compute();
+                return left.join().merge(right);
+            }
+            Result result = new Result(from);
+            // the first block links to the one before the range, or "0" for the first block in the chain
+            BlockchainBlock previous = from == 0 ? null : chain.get(from - 1);
+            String previousHash = previous == null ? String.valueOf(0b0000) : hash(previous);
+            for (int height = from; height < to; height++) {
+                BlockchainBlock b = chain.get(height);
+                byte[] raw = CalcHashHelper.hash(b);
+                String hash = DatatypeConverter.printHexBinary(raw);
+                result.blocks++;
+                if (b.getDifficulty() == null || !Difficulty.meetsTarget(raw, b.getDifficulty())
+                        || b.getDifficulty() != Difficulty.required(chain, height, previous)
+                        || (b.getBlockHash() != null && !b.getBlockHash().equalsIgnoreCase(hash))
+                        || !merkleRootMatches(b)) {
+                    result.badWork++;
+                    result.fail(height);
                 }
-                // calculate hash on this block
-                String hex = CalcHashHelper.calc(workerBlock);
-                System.out.println("solving: " + workerBlock.getBlockId() + " hex val: " + hex);
-                // our work requirement:
-                // we want the first hex value of the resulting hash to == 16 (F)
-                if (hex.substring(0,1).equals("F")) {
-                    // make sure block has not been solved yet
-                    if (UnverifiedBlockConsumer.isUnverified(workerBlock.getBlockId())) {
-                        // if it does, announce it to the world
-                        System.out.println("time: " + System.currentTimeMillis() + "\nWINNER!");
-                        // add this process id to the solved process id
-                        workerBlock.setSolvedProcessId(String.valueOf(blockchainNode.getPid()));
-                        // and tell while loop to please stop
-                        unsolved = false;
-                    }
+                if (!previousHash.equalsIgnoreCase(String.valueOf(b.getPreviousBlockHash()))) {
+                    result.badLink++;
+                    result.fail(height);
                 }
-                // sleep for 2 seconds- we're just simulating more work here
-                Thread.sleep(2000);
-            } catch (Exception ex) {
-                ex.printStackTrace();
+                if (!verifySignatures(b)) {
+                    result.badSignature++;
+                    result.fail(height);
+                }
+                previous = b;
+                previousHash = hash;
             }
-        }
-
-        // create new multicast to send to all BlockchainNodes
-        // this only gets sent *if* this process is the one who solved
-        if (!unsolved) {
-            new BlockchainNodeMulticast(workerBlock);
+            return result;
         }
     }
 }
 
-class CalcHashHelper {
-    public static String calc(BlockchainBlock b) {
-        String hexRes = null;
+
+// this class parses and creates xml to be marshalled and sent around
+class CreateXml {
+    public CreateXml() {
+    }
+
+    // method to return signed data
+    // takes in data, and the key to sign it with
+    // uses this thread's Signature engine, see SignatureHelper
+    private static byte[] signData(byte[] data, PrivateKey key, SignatureScheme scheme) throws Exception {
+        return SignatureHelper.sign(data, key, scheme);
+    }
+
+    // this method to marshall new *unverified* block - which is sent to method as string
+    public String marshalFromString(String input, BlockchainNode originNode) {
         try {
-            // create messagedigest to hash
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            // create byte array of hashed block
-            byte[] byteHash = md.digest(b.toString().getBytes("UTF-8"));
-            // convert to hex
-            hexRes = DatatypeConverter.printHexBinary(byteHash);
+            // create new signed BlockchainBlock object
+            // and marshall to XML
+            BlockchainBlock block = createSignedBlock(input, originNode);
+            // this block *includes* the signature
+            // again, unmarshalling process will need to set signature to null to verify
+            return block == null ? "" : XmlSerializer.getInstance().marshal(block);
         } catch (Exception ex) {
-            System.out.println("CalcHash exception");
+            // catch exceptions and print debugging stuff
+            System.out.println("CreateXml exception");
+            System.out.println(ex);
             ex.printStackTrace();
+            return "";
         }
-        // return hex value
-        return hexRes;
     }
-}
 
-class Keys {
-    // singleton
-    // provide public key to all clients
-    // calculate and return new private key to BlockchainNode
-    private static Keys instance = null;
+    // this method creates and signs new *unverified* block - which is sent to method as string
+    // the signature is over the block's xml, so it is the same whichever way the block is sent
+    public BlockchainBlock createSignedBlock(String input, BlockchainNode originNode) {
+        return signBlock(createBlock(input, originNode), originNode);
+    }
 
-    // private constructor (for singleton)
-    private Keys() {
+    // same, for a creating pid and key rather than a running node
+    public BlockchainBlock createSignedBlock(String input, int pid, PrivateKey key) {
+        return signBlock(createBlock(input, pid), key);
     }
 
-    // getInstance method, for singleton
-    public static synchronized Keys getInstance() {
-        if (instance == null) {
-            instance = new Keys();
-        }
-        return instance;
+    // this method creates a new *unverified* block from a line of input, not signed yet
+    // throws a RuntimeException if the line can't be parsed
+    public BlockchainBlock createBlock(String input, BlockchainNode originNode) {
+        return createBlock(input, originNode.getPid());
     }
 
-    public KeyPair getKeys(BlockchainNode bn) {
-        // calculate public and private key here
-        // add public key to publicKeyList
-        // return private key to BlockchainNode
-        byte[] pub = null;
-        byte[] priv = null;
-        KeyPair keyPair = null;
+    public BlockchainBlock createBlock(String input, int pid) {
+        // parse the line, one ParseText per call so this can run on many threads
+        ParseText pt = new ParseText(input);
+        BlockchainBlock block = new BlockchainBlock();
+
+        // null string and null signed SHA-256 show this is unverified block
+        // previousBlockHash is set in solve() method, set to null as precaution now
+        block.setPreviousBlockHash(null);
+        // set nonce to null, to indicate unsolved
+        block.setNonce(null);
+        // add create time
+        block.setCreateTime(String.valueOf(System.currentTimeMillis()));
+        // add pid of creating process
+        block.setCreatingProcessId(String.valueOf(pid));
+        // cretae random string to use for block id
+        block.setBlockId(new String(UUID.randomUUID().toString()));
+        // fill in data from file
+        block.setFirstName(pt.firstName);
+        block.setLastName(pt.lastName);
+        block.setDob(pt.dob);
+        block.setSsNum(pt.ssNum);
+        block.setDiagnosis(pt.diagnosis);
+        block.setTreatment(pt.treatment);
+        block.setPrescription(pt.prescription);
+        // precaution to set signed hash to null for now
+        // this will be included in the data that gets signed
+        // so recieving process will need pull out signed hash, save it
+        // and set signed hash to null in received block
+        // in order to verify properly
+        block.setSignedHash(null);
+        // precaution to set solving process to null as well
+        block.setSolvedProcessId(null);
+        // record the scheme we sign with, it's part of what gets signed
+        block.setSignatureScheme(SignatureScheme.CONFIGURED.getName());
+        return block;
+    }
+
+    // this method signs a block made by createBlock, returns the block or null if signing failed
+    public BlockchainBlock signBlock(BlockchainBlock block, BlockchainNode originNode) {
+        return signBlock(block, originNode.getPrivateKey());
+    }
+
+    public BlockchainBlock signBlock(BlockchainBlock block, PrivateKey key) {
         try {
-            // genrate secure random to use for key pair generation
-            SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-            // create KeyPairGenerator, which will create new public/private keys
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            // initialize and create 512 bit key
-            keyGen.initialize(1024, random);
-            // generate the key pair
-            keyPair = keyGen.generateKeyPair();
-            } catch (Exception ex) {
-            System.out.println("getPrivateKey exception: " + ex);
+            // lets marshall this block, shall we?
+            String xml = XmlSerializer.getInstance().marshal(block);
+            // create messageDigest to get sha-256 digest of block (including signed hash == null)
+            MessageDigest messageDigest = CalcHashHelper.sha256();
+            // use previously marshalled block, make it a string, and then a byte array
+            messageDigest.update(xml.getBytes());
+            // create digital signature
+            byte[] signature = signData(messageDigest.digest(), key,
+                SignatureScheme.forName(block.getSignatureScheme()));
+            // encode this in base64, and add to the block
+            block.setSignedHash(Base64.getEncoder().encodeToString(signature));
+            // helper println of signed hash
+            //System.out.println("signed hash: " + block.getSignedHash());
+
+            // return block to calling method
+            return block;
+        } catch (Exception ex) {
+            // catch exceptions and print debugging stuff
+            System.out.println("CreateXml exception");
+            System.out.println(ex);
             ex.printStackTrace();
+            return null;
         }
-        // set BlockchainNode class public and private keys
-        return keyPair;
+    }
+
+    // this marshalls newly verified block
+    public String marshalFromBlockchainBlock(BlockchainBlock newBlock) {
+        try {
+            // marshall the block, using the shared BlockchainBlock context
+            // return marshalled string to calling method
+            return XmlSerializer.getInstance().marshal(newBlock);
+        } catch (Exception ex) {
+            // exception handling
+            System.out.println("CreateXml exception");
+            System.out.println(ex);
+            ex.printStackTrace();
+            return "";
+        }
+
+    }
+
+    // method to marhsall public key
+    public String marshalPublicKey(int pid, PublicKey pub) {
+        // creat XML from public key
+        // first, we need to create a new instance of KeyHash
+        // which is a class to allow for the marshalling of keys
+        // KeyHash will be populated with pid and public key passed in as method args
+        KeyHash keyHash = createKeyHash(pid, pub);
+        try {
+            // marshal this, please- using the shared KeyHash context
+            // return marshalled data as string to calling method
+            return XmlSerializer.getInstance().marshal(keyHash);
+        } catch (Exception ex) {
+            // exception handling
+            System.out.println("CreateXml exception");
+            System.out.println(ex);
+            ex.printStackTrace();
+            return "";
+        }
+    }
+
+    // KeyHash for a pid and public key, so keys can be marshalled
+    public KeyHash createKeyHash(int pid, PublicKey pub) {
+        KeyHash keyHash = new KeyHash();
+        keyHash.setPid(pid);
+        keyHash.setPublicKey(pub.getEncoded());
+        // our own key, so it's for the scheme we sign with
+        keyHash.setScheme(SignatureScheme.CONFIGURED.getName());
+        return keyHash;
+    }
+
+    class ParseText {
+        // variables to store data in
+        private String firstName;
+        private String lastName;
+        private String dob;
+        private String ssNum;
+        private String diagnosis;
+        private String treatment;
+        private String prescription;
+
+        private ParseText(String input) {
+            // fancy, very manual string parsing.... I'm sure theres a better way to do this
+            // this will pull all the individual data points from the file
+            int stringPointer = 0;
+            firstName = input.substring(stringPointer, input.indexOf(" "));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            lastName = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            dob = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            ssNum = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            diagnosis = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            treatment = input.substring(stringPointer, input.indexOf(" ", stringPointer   + 1));
+            stringPointer = input.indexOf(" ", stringPointer + 1);
+            prescription = input.substring(stringPointer);
+        }
+    }
+}
+
+// shared xml serialization- one JAXBContext per class for the whole process
+// plus a marshaller and unmarshaller per thread, since those aren't thread safe
+class XmlSerializer {
+    // singleton
+    private static XmlSerializer instance;
+    private ConcurrentHashMap<Class<?>, JAXBContext> contexts; // context for each bound class
+    private ThreadLocal<Map<Class<?>, Marshaller>> marshallers; // this thread's marshallers
+    private ThreadLocal<Map<Class<?>, Unmarshaller>> unmarshallers; // this thread's unmarshallers
+
+    // private constructor, since this is a singleton
+    private XmlSerializer() {
+        contexts = new ConcurrentHashMap<>();
+        marshallers = ThreadLocal.withInitial(HashMap::new);
+        unmarshallers = ThreadLocal.withInitial(HashMap::new);
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized XmlSerializer getInstance() {
+        if (instance == null) {
+            instance = new XmlSerializer();
+        }
+        return instance;
+    }
+
+    // returns the shared context for this class, creating it the first time
+    public JAXBContext getContext(Class<?> c) throws JAXBException {
+        JAXBContext context = contexts.get(c);
+        if (context == null) {
+            // newInstance is expensive, but we only pay for it once per class
+            context = JAXBContext.newInstance(c);
+            JAXBContext existing = contexts.putIfAbsent(c, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    // this thread's marshaller for this class
+    public Marshaller getMarshaller(Class<?> c) throws JAXBException {
+        Map<Class<?>, Marshaller> map = marshallers.get();
+        Marshaller marshaller = map.get(c);
+        if (marshaller == null) {
+            marshaller = getContext(c).createMarshaller();
+            // we want nice output on the marshalled data
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            map.put(c, marshaller);
+        }
+        return marshaller;
+    }
+
+    // this thread's unmarshaller for this class
+    public Unmarshaller getUnmarshaller(Class<?> c) throws JAXBException {
+        Map<Class<?>, Unmarshaller> map = unmarshallers.get();
+        Unmarshaller unmarshaller = map.get(c);
+        if (unmarshaller == null) {
+            unmarshaller = getContext(c).createUnmarshaller();
+            map.put(c, unmarshaller);
+        }
+        return unmarshaller;
+    }
+
+    // marshal object to xml string
+    public String marshal(Object o) throws JAXBException {
+        StringWriter sw = new StringWriter();
+        getMarshaller(o.getClass()).marshal(o, sw);
+        return sw.toString();
+    }
+
+    // unmarshal xml string to object of class c
+    public <T> T unmarshal(String xml, Class<T> c) throws JAXBException {
+        return c.cast(getUnmarshaller(c).unmarshal(new StringReader(xml)));
+    }
+
+    // unmarshal xml string to whichever of these classes its root element is for, the first if none
+    public <T> T unmarshal(String xml, List<Class<? extends T>> types) throws JAXBException {
+        String root = rootElement(xml);
+        for (Class<? extends T> c : types) {
+            if (elementName(c).equals(root)) {
+                return unmarshal(xml, c);
+            }
+        }
+        return unmarshal(xml, types.get(0));
+    }
+
+    // root element jaxb reads and writes a class as, its simple name starting lower case unless it says
+    private static String elementName(Class<?> c) {
+        XmlRootElement root = c.getAnnotation(XmlRootElement.class);
+        if (root != null && !"##default".equals(root.name())) {
+            return root.name();
+        }
+        String name = c.getSimpleName();
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    // name of the first element in an xml document, after any <?xml ...?> or comments
+    private static String rootElement(String xml) {
+        int start = xml.indexOf('<');
+        while (start >= 0 && start + 1 < xml.length() && (xml.charAt(start + 1) == '?' || xml.charAt(start + 1) == '!')) {
+            start = xml.indexOf('<', start + 1);
+        }
+        if (start < 0) {
+            return "";
+        }
+        int end = start + 1;
+        while (end < xml.length() && !Character.isWhitespace(xml.charAt(end))
+                && xml.charAt(end) != '>' && xml.charAt(end) != '/') {
+            end++;
+        }
+        return xml.substring(start + 1, end);
+    }
+}
+
+// compact binary wire format for blocks and keys, xml is still accepted for debugging
+// each connection starts with either a MAGIC byte (binary frames) or '<' (xml)
+// so the format is picked per connection by the sender, -Dblockchain.wire=xml to send xml
+// frame: MAGIC(1) | VERSION(1) | type(1) | varint payload length | payload
+class WireProtocol {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_BLOCK = 1;
+    public static final byte TYPE_KEY = 2;
+    public static final byte TYPE_DIGEST = 3;
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024; // refuse anything bigger than 16MB
+    // send binary frames unless asked for xml
+    public static final boolean BINARY = !"xml".equalsIgnoreCase(System.getProperty("blockchain.wire", "binary"));
+
+    // block flags- which optional fields are present, and which are sent raw
+    private static final int HAS_NONCE = 1;
+    private static final int HAS_DIFFICULTY = 1 << 1;
+    private static final int HAS_SEAL_TIME = 1 << 2;
+    private static final int RAW_SIGNATURE = 1 << 3;
+    private static final int RAW_PREVIOUS_HASH = 1 << 4;
+    private static final int HAS_BLOCK_HASH = 1 << 5;
+    private static final int HAS_MERKLE_ROOT = 1 << 6;
+    private static final int HAS_RECORDS = 1 << 7;
+    private static final int HAS_SCHEME = 1 << 8;
+
+    private WireProtocol() {
+    }
+
+    // bytes to put on the wire for a block or key, binary frame or xml depending on BINARY
+    public static byte[] toWire(Object o) {
+        if (o == null) {
+            return null;
+        }
+        try {
+            if (BINARY) {
+                return encode(o);
+            }
+            return (XmlSerializer.getInstance().marshal(o) + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        } catch (Exception ex) {
+            System.out.println("WireProtocol exception");
+            System.out.println(ex);
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    // encode block, key or digest into a binary frame
+    public static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        byte type;
+        if (o instanceof BlockchainBlock) {
+            type = TYPE_BLOCK;
+            writeBlock(payload, (BlockchainBlock) o);
+        } else if (o instanceof KeyHash) {
+            type = TYPE_KEY;
+            KeyHash k = (KeyHash) o;
+            writeVarint(payload, k.getPid() & 0xFFFFFFFFL);
+            writeBytes(payload, k.getPublicKey());
+            writeString(payload, k.getScheme());
+            // where the node is, so a key doubles as its membership announcement
+            if (k.getHost() != null) {
+                writeString(payload, k.getHost());
+                writeVarint(payload, k.getKeyPort());
+                writeVarint(payload, k.getUnverifiedPort());
+                writeVarint(payload, k.getVerifiedPort());
+                payload.write(k.isLeaving() ? 1 : 0);
+            }
+        } else if (o instanceof Digest) {
+            type = TYPE_DIGEST;
+            Digest d = (Digest) o;
+            writeVarint(payload, d.getSender() & 0xFFFFFFFFL);
+            // height is -1 for an empty chain
+            writeVarint(payload, d.getHeight() + 1L);
+            writeVarint(payload, d.getRecords().size());
+            for (String id : d.getRecords()) {
+                writeString(payload, id);
+            }
+        } else {
+            throw new IOException("can't encode " + o.getClass().getName());
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 8);
+        frame.write(MAGIC);
+        frame.write(VERSION);
+        frame.write(type);
+        writeVarint(frame, payload.size());
+        payload.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    // read one message off the stream, binary frame or xml
+    // returns null if the stream is already at the end
+    // binary connections carry many frames, so callers should keep one buffered stream per connection
+    public static <T> T read(InputStream in, Class<T> c) throws IOException, JAXBException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        if ((byte) first != MAGIC) {
+            // not a binary frame, so this connection is xml- read it all
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(first);
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bos.write(buf, 0, n);
+            }
+            return XmlSerializer.getInstance().unmarshal(bos.toString("UTF-8").trim(), c);
+        }
+        return c.cast(readFrame(in));
+    }
+
+    // read the rest of a binary frame, the MAGIC byte has already been read
+    public static Object readFrame(InputStream in) throws IOException {
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("unsupported wire version: " + version);
+        }
+        int type = in.read();
+        long length = readVarint(in);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("bad frame length: " + length);
+        }
+        byte[] payload = new byte[(int) length];
+        new DataInputStream(in).readFully(payload);
+        return decode(type, payload);
+    }
+
+    // decode a frame payload
+    public static Object decode(int type, byte[] payload) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(payload);
+        if (type == TYPE_BLOCK) {
+            return readBlock(in, false);
+        } else if (type == TYPE_KEY) {
+            KeyHash k = new KeyHash();
+            k.setPid((int) readVarint(in));
+            k.setPublicKey(readBytes(in));
+            // keys from before schemes were sent stop here
+            if (in.available() > 0) {
+                k.setScheme(readString(in));
+            }
+            // and keys from before membership stop here
+            if (in.available() > 0) {
+                k.setHost(readString(in));
+                k.setKeyPort((int) readVarint(in));
+                k.setUnverifiedPort((int) readVarint(in));
+                k.setVerifiedPort((int) readVarint(in));
+                k.setLeaving(readByte(in) == 1);
+            }
+            return k;
+        } else if (type == TYPE_DIGEST) {
+            Digest d = new Digest();
+            d.setSender((int) readVarint(in));
+            d.setHeight((int) (readVarint(in) - 1));
+            long count = readVarint(in);
+            if (count > payload.length) {
+                throw new IOException("bad record count: " + count);
+            }
+            List<String> records = new ArrayList<>((int) count);
+            for (long i = 0; i < count; i++) {
+                records.add(readString(in));
+            }
+            d.setRecords(records);
+            return d;
+        }
+        throw new IOException("unknown frame type: " + type);
+    }
+
+    private static void writeBlock(OutputStream out, BlockchainBlock b) throws IOException {
+        // signature is base64 text in the block, but raw bytes on the wire
+        byte[] sig = rawBase64(b.getSignedHash());
+        // previous hash is hex text in the block, but raw bytes on the wire
+        byte[] prev = rawHex(b.getPreviousBlockHash());
+        // the block's own hash is always hex, anything else isn't sent and gets recomputed
+        byte[] hash = rawHex(b.getBlockHash());
+        byte[] root = rawHex(b.getMerkleRoot());
+        int flags = 0;
+        flags |= b.getNonce() != null ? HAS_NONCE : 0;
+        flags |= b.getDifficulty() != null ? HAS_DIFFICULTY : 0;
+        flags |= b.getSealTime() != null ? HAS_SEAL_TIME : 0;
+        flags |= sig != null ? RAW_SIGNATURE : 0;
+        flags |= prev != null ? RAW_PREVIOUS_HASH : 0;
+        flags |= hash != null ? HAS_BLOCK_HASH : 0;
+        flags |= root != null ? HAS_MERKLE_ROOT : 0;
+        flags |= b.getRecords() != null ? HAS_RECORDS : 0;
+        flags |= b.getSignatureScheme() != null ? HAS_SCHEME : 0;
+        writeVarint(out, flags);
+        writeString(out, b.getBlockId());
+        writeString(out, b.getCreateTime());
+        writeString(out, b.getCreatingProcessId());
+        writeString(out, b.getSolvedProcessId());
+        writeString(out, b.getFirstName());
+        writeString(out, b.getLastName());
+        writeString(out, b.getDob());
+        writeString(out, b.getSsNum());
+        writeString(out, b.getDiagnosis());
+        writeString(out, b.getTreatment());
+        writeString(out, b.getPrescription());
+        if (sig != null) {
+            writeBytes(out, sig);
+        } else {
+            writeString(out, b.getSignedHash());
+        }
+        if (prev != null) {
+            writeBytes(out, prev);
+        } else {
+            writeString(out, b.getPreviousBlockHash());
+        }
+        if (b.getNonce() != null) {
+            // nonces are random, so a fixed 8 bytes is smaller than a varint
+            byte[] nonce = new byte[8];
+            BlockHeader.putLong(nonce, 0, b.getNonce());
+            out.write(nonce);
+        }
+        if (b.getDifficulty() != null) {
+            writeVarint(out, b.getDifficulty() & 0xFFFFFFFFL);
+        }
+        if (b.getSealTime() != null) {
+            writeVarint(out, b.getSealTime());
+        }
+        if (hash != null) {
+            writeBytes(out, hash);
+        }
+        if (root != null) {
+            writeBytes(out, root);
+        }
+        if (b.getSignatureScheme() != null) {
+            writeString(out, b.getSignatureScheme());
+        }
+        if (b.getRecords() != null) {
+            // each record is written the same way as a block
+            writeVarint(out, b.getRecords().size());
+            for (BlockchainBlock r : b.getRecords()) {
+                writeBlock(out, r);
+            }
+        }
+    }
+
+    // records are read the same way, but can't have records of their own
+    private static BlockchainBlock readBlock(InputStream in, boolean record) throws IOException {
+        BlockchainBlock b = new BlockchainBlock();
+        int flags = (int) readVarint(in);
+        b.setBlockId(readString(in));
+        // setCreateTime and setSignedHash turn null into "null"
+        // so like the xml path, only call them when there is a value
+        String createTime = readString(in);
+        if (createTime != null) {
+            b.setCreateTime(createTime);
+        }
+        b.setCreatingProcessId(readString(in));
+        b.setSolvedProcessId(readString(in));
+        b.setFirstName(readString(in));
+        b.setLastName(readString(in));
+        b.setDob(readString(in));
+        b.setSsNum(readString(in));
+        b.setDiagnosis(readString(in));
+        b.setTreatment(readString(in));
+        b.setPrescription(readString(in));
+        if ((flags & RAW_SIGNATURE) != 0) {
+            b.setSignedHash(Base64.getEncoder().encodeToString(readBytes(in)));
+        } else {
+            String signedHash = readString(in);
+            if (signedHash != null) {
+                b.setSignedHash(signedHash);
+            }
+        }
+        if ((flags & RAW_PREVIOUS_HASH) != 0) {
+            b.setPreviousBlockHash(DatatypeConverter.printHexBinary(readBytes(in)));
+        } else {
+            b.setPreviousBlockHash(readString(in));
+        }
+        if ((flags & HAS_NONCE) != 0) {
+            long nonce = 0;
+            for (int i = 0; i < 8; i++) {
+                nonce = (nonce << 8) | readByte(in);
+            }
+            b.setNonce(nonce);
+        }
+        if ((flags & HAS_DIFFICULTY) != 0) {
+            b.setDifficulty((int) readVarint(in));
+        }
+        if ((flags & HAS_SEAL_TIME) != 0) {
+            b.setSealTime(readVarint(in));
+        }
+        if ((flags & HAS_BLOCK_HASH) != 0) {
+            b.setBlockHash(DatatypeConverter.printHexBinary(readBytes(in)));
+        }
+        if ((flags & HAS_MERKLE_ROOT) != 0) {
+            b.setMerkleRoot(DatatypeConverter.printHexBinary(readBytes(in)));
+        }
+        if ((flags & HAS_SCHEME) != 0) {
+            b.setSignatureScheme(readString(in));
+        }
+        if ((flags & HAS_RECORDS) != 0) {
+            if (record) {
+                throw new IOException("record with records");
+            }
+            long count = readVarint(in);
+            // a record is at least a few bytes, so this many can't be in one frame
+            if (count > MAX_PAYLOAD) {
+                throw new IOException("bad record count: " + count);
+            }
+            List<BlockchainBlock> records = new ArrayList<>((int) Math.min(count, 1024));
+            for (long i = 0; i < count; i++) {
+                records.add(readBlock(in, true));
+            }
+            b.setRecords(records);
+        }
+        return b;
+    }
+
+    // raw bytes for base64 text, or null if the text wouldn't come back out the same
+    private static byte[] rawBase64(String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            byte[] raw = Base64.getDecoder().decode(s);
+            return Base64.getEncoder().encodeToString(raw).equals(s) ? raw : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // raw bytes for hex text, or null if the text wouldn't come back out the same
+    private static byte[] rawHex(String s) {
+        if (s == null || s.length() % 2 != 0) {
+            return null;
+        }
+        try {
+            byte[] raw = DatatypeConverter.parseHexBinary(s);
+            return DatatypeConverter.printHexBinary(raw).equals(s) ? raw : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // unsigned LEB128 varint
+    public static void writeVarint(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    public static long readVarint(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    // byte arrays are varint(length + 1) then the bytes, 0 means null
+    public static void writeBytes(OutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, b.length + 1L);
+        out.write(b);
+    }
+
+    public static byte[] readBytes(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > MAX_PAYLOAD) {
+            throw new IOException("bad field length: " + (length - 1));
+        }
+        byte[] b = new byte[(int) (length - 1)];
+        new DataInputStream(in).readFully(b);
+        return b;
+    }
+
+    // strings are UTF-8 bytes
+    private static void writeString(OutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] b = readBytes(in);
+        return b == null ? null : new String(b, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("end of stream in the middle of a frame");
+        }
+        return b;
+    }
+}
+
+// streams a file of records into the blockchain as new unverified blocks
+// reader -> parser -> signing pool -> sender, with bounded queues between the stages
+// so a slow stage pushes back on the ones before it instead of everything piling up in memory
+// records are read, signed and sent in batches, and sent in the order they were read
+class BulkIngest {
+    private static final List<String> END = new ArrayList<>(); // marks the end of the file
+    private int batchSize; // records per batch, -Dblockchain.ingestBatch=N to override
+    private int queueLength; // batches waiting between stages, -Dblockchain.ingestQueue=N to override
+    private int signers; // signing threads, -Dblockchain.ingestSigners=N to override
+    private long progressInterval; // ms between progress reports, -Dblockchain.ingestProgress=N to override
+    private BlockchainNode originNode; // node the records are signed by
+    private AtomicLong read = new AtomicLong(); // lines read
+    private AtomicLong signed = new AtomicLong(); // blocks signed
+    private AtomicLong sent = new AtomicLong(); // blocks queued on the peer links
+    private AtomicLong failed = new AtomicLong(); // lines that couldn't be parsed or signed
+
+    public BulkIngest(BlockchainNode node) {
+        originNode = node;
+        batchSize = Math.max(1, Integer.getInteger("blockchain.ingestBatch", 256));
+        queueLength = Math.max(1, Integer.getInteger("blockchain.ingestQueue", 16));
+        signers = Math.max(1, Integer.getInteger("blockchain.ingestSigners", Runtime.getRuntime().availableProcessors()));
+        progressInterval = Long.getLong("blockchain.ingestProgress", 2000L);
+    }
+
+    // read the whole file and send every record, returns the number of blocks sent
+    public long ingest(File file) throws IOException, InterruptedException {
+        BlockingQueue<List<String>> lines = new ArrayBlockingQueue<>(queueLength);
+        // futures go on in the order the batches were read, and the sender takes them in that order
+        BlockingQueue<Future<List<byte[]>>> signedBatches = new ArrayBlockingQueue<>(queueLength);
+        ExecutorService signingPool = Executors.newFixedThreadPool(signers, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ingest-signer-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread parser = new Thread(() -> parse(lines, signedBatches, signingPool), "ingest-parser");
+        Thread sender = new Thread(() -> send(signedBatches), "ingest-sender");
+        parser.setDaemon(true);
+        sender.setDaemon(true);
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ingest-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> report(start, false), progressInterval, progressInterval, TimeUnit.MILLISECONDS);
+        parser.start();
+        sender.start();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                batch.add(line);
+                read.incrementAndGet();
+                if (batch.size() == batchSize) {
+                    lines.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                lines.put(batch);
+            }
+        } finally {
+            // let the stages finish what they have, then stop
+            lines.put(END);
+            sender.join();
+            signingPool.shutdown();
+            progress.shutdownNow();
+        }
+        report(start, true);
+        return sent.get();
+    }
+
+    // parse stage- turns lines into unsigned blocks, and hands each batch to the signing pool
+    private void parse(BlockingQueue<List<String>> lines, BlockingQueue<Future<List<byte[]>>> signedBatches,
+            ExecutorService signingPool) {
+        CreateXml createXml = new CreateXml();
+        try {
+            while (true) {
+                List<String> batch = lines.take();
+                if (batch == END) {
+                    break;
+                }
+                List<BlockchainBlock> blocks = new ArrayList<>(batch.size());
+                for (String line : batch) {
+                    try {
+                        blocks.add(createXml.createBlock(line, originNode));
+                    } catch (RuntimeException ex) {
+                        System.out.println("Skipping bad record: " + line);
+                        failed.incrementAndGet();
+                    }
+                }
+                // blocks here when the sender is queueLength batches behind
+                signedBatches.put(signingPool.submit(() -> sign(createXml, blocks)));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // tell the sender we're done
+            try {
+                signedBatches.put(CompletableFuture.completedFuture(null));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // signing stage- runs on the signing pool, returns the batch on the wire format
+    private List<byte[]> sign(CreateXml createXml, List<BlockchainBlock> blocks) {
+        List<byte[]> frames = new ArrayList<>(blocks.size());
+        for (BlockchainBlock b : blocks) {
+            byte[] data = WireProtocol.toWire(createXml.signBlock(b, originNode));
+            if (data == null) {
+                failed.incrementAndGet();
+            } else {
+                frames.add(data);
+                signed.incrementAndGet();
+            }
+        }
+        return frames;
+    }
+
+    // send stage- sends each batch to every node, in the order the batches were read
+    private void send(BlockingQueue<Future<List<byte[]>>> signedBatches) {
+        try {
+            while (true) {
+                List<byte[]> batch;
+                try {
+                    batch = signedBatches.take().get();
+                } catch (ExecutionException ex) {
+                    // lose this batch, but keep going so the stages before us don't get stuck
+                    System.out.println("Ingest signing error: " + ex.getCause());
+                    ex.printStackTrace();
+                    continue;
+                }
+                if (batch == null) {
+                    return;
+                }
+                if (!batch.isEmpty()) {
+                    BlockchainNodeMulticast.sendUnverifiedBatch(batch);
+                    sent.addAndGet(batch.size());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // print counts so far, and blocks sent per second
+    private void report(long start, boolean done) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s: %d read, %d signed, %d sent, %d failed in %.1fs (%.0f records/sec)",
+            done ? "Ingest done" : "Ingesting", read.get(), signed.get(), sent.get(), failed.get(),
+            seconds, seconds > 0 ? sent.get() / seconds : 0));
+    }
+}
+
+class BlockchainNodeMulticast {
+    // multicast for all blockchain nodes
+    // set some class variables
+    private int q_len = 6; // length of queue
+    // which of each member's ports to send to- dynamically determined based on data sending
+    private ToIntFunction<Member> port;
+    private String newBlock; // place to store string of new block, when passed in
+    private byte[] dataToSend; // this is the binary frame (or xml) we are going to multicast
+    private BlockchainNode originNode; // originiating node
+
+    // method to start multicast of newly *unverified* blockchain block
+    BlockchainNodeMulticast(String input, BlockchainNode bcNode) {
+        // received in XML for new Block
+        // send to each member's unverified block port
+        port = Member::getUnverifiedPort;
+        newBlock = input;
+        // set origin node variable to the originating node
+        originNode = bcNode;
+        // multicast worker with correct args will kick off the multicast party
+        // no new thread needed, the peer links do the sending
+        new MulticastWorker(input, bcNode).run();
+    }
+
+    // method to start multicast of newly verified blockchain block
+    BlockchainNodeMulticast(BlockchainBlock newBlockchainBlock) {
+        //newBlock = newBlockchainBlock;
+        // send to each member's verified block port
+        port = Member::getVerifiedPort;
+        // start new multicast worker to get this multicast party started
+        new MulticastWorker(newBlockchainBlock).run();
+    }
+
+    // YABMOC - (yet another blockchain multicast overloaded constructor).. this time to send public keys
+    // the key says where we are too, so this is also how we announce ourselves to the cluster
+    BlockchainNodeMulticast(int pid, PublicKey pub) {
+        // send to each member's public key port
+        port = Member::getKeyPort;
+        // new multicast worker party. to handle sending public key
+        MulticastWorker worker = new MulticastWorker(pid, pub);
+        worker.run();
+        // and the seeds, who we may not know as members yet
+        for (InetSocketAddress seed : Membership.getInstance().getSeeds()) {
+            PeerLinkManager.getInstance().getLink(seed.getHostString(), seed.getPort()).send(dataToSend);
+        }
+    }
+
+    // pass a member's announcement on to everyone else, so they all hear about it
+    BlockchainNodeMulticast(KeyHash announcement) {
+        port = Member::getKeyPort;
+        dataToSend = WireProtocol.toWire(announcement);
+        if (dataToSend == null) {
+            return;
+        }
+        for (Member m : Membership.getInstance().getMembers()) {
+            if (m.getId() != announcement.getPid() && m != Membership.getInstance().getSelf()) {
+                PeerLinkManager.getInstance().getLink(m.getHost(), m.getKeyPort()).send(dataToSend);
+            }
+        }
+    }
+
+    // tell every member we are leaving, straight away rather than through the links, for use while shutting down
+    public static void leave(int pid, PublicKey pub) {
+        Member self = Membership.getInstance().getSelf();
+        byte[] data = WireProtocol.toWire(self.describe(new CreateXml().createKeyHash(pid, pub), true));
+        if (data == null) {
+            return;
+        }
+        for (Member m : Membership.getInstance().getMembers()) {
+            if (m != self) {
+                PeerLinkManager.sendNow(m.getHost(), m.getKeyPort(), data, 500);
+            }
+        }
+    }
+
+    // who we send to- every member, ourselves included
+    // except blocks when gossiping, which only go to ourselves and spread from there as we pass them on, see Gossip
+    private static Collection<Member> recipients(boolean block) {
+        if (block && Gossip.ENABLED) {
+            return Collections.singletonList(Membership.getInstance().getSelf());
+        }
+        return Membership.getInstance().getMembers();
+    }
+
+    // send a batch of unverified blocks, already on the wire format, to every node
+    // binary frames go as one write per node, xml still needs a message each
+    // waits for room on the peer links instead of dropping, so the caller is slowed to what the peers take
+    public static void sendUnverifiedBatch(List<byte[]> batch) throws InterruptedException {
+        List<byte[]> messages = batch;
+        if (WireProtocol.BINARY && batch.size() > 1) {
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (byte[] frame : batch) {
+                joined.write(frame, 0, frame.length);
+            }
+            messages = Collections.singletonList(joined.toByteArray());
+        }
+        for (Member m : recipients(true)) {
+            PeerLinkManager.PeerLink link = PeerLinkManager.getInstance().getLink(m.getHost(), m.getUnverifiedPort());
+            for (byte[] message : messages) {
+                link.sendBlocking(message);
+            }
+        }
+    }
+
+    // worker class to multicast
+    class MulticastWorker implements Runnable {
+        // some variables
+        private String message; // message we are going to send
+        private BlockchainBlock newBlockchainBlock; // blockchain block we are going to send.. if needed
+
+        // overloaded constructor.. to send new blockchian
+        private MulticastWorker(String input, BlockchainNode originNode) {
+            // pass in XML as 'input', store in 'message'
+            message = input;
+            // new CreateXML class to create the signed block
+            CreateXml createXml = new CreateXml();
+            // create wire data for unverified block
+            dataToSend = WireProtocol.toWire(createXml.createSignedBlock(input, originNode));
+        }
+
+        // overloaded constructor
+        // this constructor takes completed blockchain block, and allows for multicast
+        private MulticastWorker(BlockchainBlock newBlock) {
+            // store new blockchain in instance variable
+            newBlockchainBlock = newBlock;
+            // store the data to send in instance variable to be read by run method
+            dataToSend = WireProtocol.toWire(newBlock);
+        }
+
+        // another overloaded constructor- to send the public keys
+        private MulticastWorker(int pid, PublicKey pub) {
+            // new create xml instance
+            CreateXml createXml = new CreateXml();
+            // get me the data to be sent for public keys, with where we are. and store it instance var
+            dataToSend = WireProtocol.toWire(Membership.getInstance().getSelf().describe(createXml.createKeyHash(pid, pub), false));
+        }
+
+        public void run() {
+            if (dataToSend == null) {
+                // nothing to send, error already printed when it was created
+                return;
+            }
+            // for each member of the cluster, ourselves included (just ourselves when gossiping)
+            for (Member m : recipients(message != null || newBlockchainBlock != null)) {
+                // multicast to all blockchain servers
+                // determine port- the member's port for this kind of data
+                // queue it on the long lived link to this peer, its sender thread does the rest
+                // so a slow peer doesn't hold up everyone after it
+                PeerLinkManager.getInstance().getLink(m.getHost(), port.applyAsInt(m)).send(dataToSend);
+            }
+        }
+    }
+}
+
+// manages long lived connections to peers, one link per peer and channel (port)
+// each link has its own bounded outbound queue and sender thread, and reconnects on its own
+class PeerLinkManager {
+    // singleton
+    private static PeerLinkManager instance;
+    private ConcurrentHashMap<String, PeerLink> links; // links by host:port
+    // messages we'll queue up for one peer, -Dblockchain.peerQueue=N to override
+    private int queueLength = Integer.getInteger("blockchain.peerQueue", 1024);
+
+    // private constructor, since this is a singleton
+    private PeerLinkManager() {
+        links = new ConcurrentHashMap<>();
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized PeerLinkManager getInstance() {
+        if (instance == null) {
+            instance = new PeerLinkManager();
+        }
+        return instance;
+    }
+
+    // returns the link for this peer and channel, starting it the first time
+    public PeerLink getLink(String host, int port) {
+        return links.computeIfAbsent(host + ":" + port, k -> {
+            PeerLink link = new PeerLink(host, port, queueLength);
+            Metrics.getInstance().gauge("blockchain_peer_queue_depth", "messages waiting to be sent to a peer",
+                link::getQueueSize, "peer", k);
+            link.thread = new Thread(link, "peer-" + k);
+            link.thread.setDaemon(true);
+            link.thread.start();
+            return link;
+        });
+    }
+
+    // stop the links to a member that has left, anything still queued for it is dropped
+    public void removeLinks(Member m) {
+        for (int port : new int[] {m.getKeyPort(), m.getUnverifiedPort(), m.getVerifiedPort()}) {
+            PeerLink link = links.remove(m.getHost() + ":" + port);
+            if (link != null) {
+                link.thread.interrupt();
+            }
+        }
+    }
+
+    // write one message straight to a peer on a new connection, bypassing the links
+    // for when we're shutting down and can't wait for the link threads. best effort, returns false if it failed
+    public static boolean sendNow(String host, int port, byte[] data, int timeoutMillis) {
+        try (Socket sock = new Socket()) {
+            sock.connect(new InetSocketAddress(host, port), timeoutMillis);
+            sock.setSoTimeout(timeoutMillis);
+            OutputStream out = sock.getOutputStream();
+            out.write(data);
+            out.flush();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // one peer, one channel
+    class PeerLink implements Runnable {
+        private static final long OFFER_TIMEOUT_MS = 5000; // how long send waits on a full queue
+        private static final int MAX_ATTEMPTS = 5; // tries per message before we drop it
+        private static final long MAX_BACKOFF_MS = 5000; // longest wait between reconnects
+        private String host; // peer host
+        private int port; // peer port for this channel
+        private BlockingQueue<byte[]> outbound; // messages waiting to go out
+        private Socket sock; // current connection, null when disconnected
+        private OutputStream out; // output stream of current connection
+        private Thread thread; // sender thread, interrupted when the peer leaves
+        private Metrics.Counter bytesOut; // bytes sent on this link's channel, shared with the other peers
+
+        private PeerLink(String h, int p, int queueLength) {
+            host = h;
+            port = p;
+            outbound = new ArrayBlockingQueue<>(queueLength);
+            bytesOut = Metrics.getInstance().counter("blockchain_bytes_out_total", "bytes sent, by channel",
+                "channel", Membership.getInstance().getChannel(p));
+        }
+
+        // queue a message for this peer, waits a little if the queue is full
+        public void send(byte[] data) {
+            try {
+                if (!outbound.offer(data, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    System.out.println("Peer " + host + ":" + port + " queue full, dropping message");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // queue a message for this peer, waiting as long as it takes for room
+        // for bulk senders that would rather slow down than drop anything
+        public void sendBlocking(byte[] data) throws InterruptedException {
+            outbound.put(data);
+        }
+
+        public int getQueueSize() {
+            return outbound.size();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    deliver(outbound.take());
+                } catch (InterruptedException ex) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        // write one message, reconnecting if we need to
+        private void deliver(byte[] data) throws InterruptedException {
+            // xml can't be framed, so it still gets a connection per message
+            boolean persistent = data.length > 0 && data[0] == WireProtocol.MAGIC;
+            long backoff = 100;
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                try {
+                    if (sock == null) {
+                        sock = new Socket(host, port);
+                        sock.setTcpNoDelay(true);
+                        out = new BufferedOutputStream(sock.getOutputStream());
+                    }
+                    out.write(data);
+                    out.flush();
+                    bytesOut.add(data.length);
+                    if (!persistent) {
+                        close();
+                    }
+                    return;
+                } catch (IOException ex) {
+                    // connection is gone, drop it and try again in a bit
+                    close();
+                    if (attempt == MAX_ATTEMPTS) {
+                        System.out.println("multicast worker error, giving up on " + host + ":" + port + ": " + ex);
+                        return;
+                    }
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                }
+            }
+        }
+
+        private void close() {
+            try {
+                if (sock != null) {
+                    sock.close();
+                }
+            } catch (IOException ex) {
+                // closing anyway
+            }
+            sock = null;
+            out = null;
+        }
+    }
+}
+
+// gossip propagation, -Dblockchain.propagation=gossip to use it instead of sending every block to every member
+// a new block only goes to ourselves, and each node passes a block it takes in for the first time on to
+// a few members picked at random (-Dblockchain.fanout=N, default 4). so a block reaches everyone in
+// about log(members) hops, and each node sends fanout copies of it rather than one per member
+// the seen caches stop blocks going round again. anything a node misses is pulled in by repair:
+// every -Dblockchain.repairInterval ms it sends its chain height and the records in its unverified pool
+// to a random member, which sends back the blocks above that height and the records we don't have
+// keys and announcements still go to everyone, see BlockchainNodeMulticast
+class Gossip {
+    public static final boolean ENABLED = "gossip".equalsIgnoreCase(System.getProperty("blockchain.propagation", "multicast"));
+    // members each block is passed on to
+    public static final int FANOUT = Math.max(1, Integer.getInteger("blockchain.fanout", 4));
+    // ms between repair digests, 0 for no repair
+    private static final long REPAIR_INTERVAL = Long.getLong("blockchain.repairInterval", 1000L);
+    private static final int REPAIR_BATCH = 256; // most blocks, and most records, in one digest or one reply
+    // blockIds remembered for each channel, -Dblockchain.seenCache=N to override
+    private static final int SEEN = Math.max(16, Integer.getInteger("blockchain.seenCache", 65536));
+    public static final SeenCache UNVERIFIED_SEEN = new SeenCache(SEEN);
+    public static final SeenCache VERIFIED_SEEN = new SeenCache(SEEN);
+    private static final Metrics.Counter RELAYED_UNVERIFIED = Metrics.getInstance().counter(
+        "blockchain_gossip_relayed_total", "blocks passed on to other members by gossip", "channel", "unverified");
+    private static final Metrics.Counter RELAYED_VERIFIED = Metrics.getInstance().counter(
+        "blockchain_gossip_relayed_total", "blocks passed on to other members by gossip", "channel", "verified");
+    private static final Metrics.Counter REPAIRED = Metrics.getInstance().counter(
+        "blockchain_gossip_repaired_total", "blocks sent back to members that were missing them");
+
+    private Gossip() {
+    }
+
+    // up to k members other than self, picked at random
+    public static List<Member> pickPeers(Collection<Member> members, int self, int k) {
+        List<Member> others = new ArrayList<>(members.size());
+        for (Member m : members) {
+            if (m.getId() != self) {
+                others.add(m);
+            }
+        }
+        // only the first k need shuffling
+        int n = Math.min(k, others.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            Collections.swap(others, i, i + random.nextInt(others.size() - i));
+        }
+        return others.subList(0, n);
+    }
+
+    // pass a block we've just taken in on to FANOUT members, on the port for its channel
+    public static void relay(BlockchainBlock b, ToIntFunction<Member> port) {
+        byte[] data = WireProtocol.toWire(b);
+        if (data == null) {
+            return;
+        }
+        Metrics.Counter relayed = b.getNonce() == null ? RELAYED_UNVERIFIED : RELAYED_VERIFIED;
+        Membership membership = Membership.getInstance();
+        for (Member m : pickPeers(membership.getMembers(), membership.getSelf().getId(), FANOUT)) {
+            PeerLinkManager.getInstance().getLink(m.getHost(), port.applyAsInt(m)).send(data);
+            relayed.increment();
+        }
+    }
+
+    // start sending digests, in whichever wire format we send everything else in
+    public static void startRepair(BlockchainNode bcNode) {
+        if (REPAIR_INTERVAL <= 0) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(REPAIR_INTERVAL);
+                    sendDigest(bcNode.getPid());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "gossip-repair");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // tell a random member what we have
+    private static void sendDigest(int pid) {
+        Membership membership = Membership.getInstance();
+        List<Member> peer = pickPeers(membership.getMembers(), pid, 1);
+        if (peer.isEmpty()) {
+            return;
+        }
+        Digest d = new Digest();
+        d.setSender(pid);
+        d.setHeight(BlockchainNode.getTip().getHeight());
+        for (BlockchainBlock b : UnverifiedBlockConsumer.getUnverifiedQueue().oldest(REPAIR_BATCH)) {
+            d.getRecords().add(b.getBlockId());
+        }
+        byte[] data = WireProtocol.toWire(d);
+        if (data != null) {
+            PeerLinkManager.getInstance().getLink(peer.get(0).getHost(), peer.get(0).getKeyPort()).send(data);
+        }
+    }
+
+    // a member told us what it has, send it what it's missing
+    // blocks above its height, oldest first, and the records in our pool it didn't list
+    // (it only lists its oldest, so it may get some it has- its seen cache drops those)
+    public static void repair(Digest d) {
+        Member m = Membership.getInstance().getMember(d.getSender());
+        if (m == null || m == Membership.getInstance().getSelf()) {
+            return;
+        }
+        PeerLinkManager links = PeerLinkManager.getInstance();
+        int height = BlockchainNode.getTip().getHeight();
+        for (int h = d.getHeight() + 1; h <= Math.min(height, d.getHeight() + REPAIR_BATCH); h++) {
+            byte[] data = WireProtocol.toWire(BlockchainNode.getBlock(h));
+            if (data != null) {
+                links.getLink(m.getHost(), m.getVerifiedPort()).send(data);
+                REPAIRED.increment();
+            }
+        }
+        Set<String> has = new HashSet<>(d.getRecords());
+        for (BlockchainBlock b : UnverifiedBlockConsumer.getUnverifiedQueue().oldest(REPAIR_BATCH)) {
+            if (!has.contains(b.getBlockId())) {
+                byte[] data = WireProtocol.toWire(b);
+                if (data != null) {
+                    links.getLink(m.getHost(), m.getUnverifiedPort()).send(data);
+                    REPAIRED.increment();
+                }
+            }
+        }
+    }
+
+    // blockIds we've already taken in, so the copies that gossip brings are dropped
+    // bounded- the oldest ids are forgotten once there are capacity of them
+    static class SeenCache {
+        private Set<String> ids; // what we've seen, for lookups
+        private String[] ring; // the same ids, in the order we saw them
+        private int next; // where the next id goes in ring
+
+        SeenCache(int capacity) {
+            ids = ConcurrentHashMap.newKeySet(capacity * 2);
+            ring = new String[capacity];
+        }
+
+        // note an id, returns true if we hadn't seen it. null ids are never new
+        public synchronized boolean add(String id) {
+            if (id == null || !ids.add(id)) {
+                return false;
+            }
+            if (ring[next] != null) {
+                ids.remove(ring[next]);
+            }
+            ring[next] = id;
+            next = (next + 1) % ring.length;
+            return true;
+        }
+
+        // have we seen this id, never blocks
+        public boolean contains(String id) {
+            return id != null && ids.contains(id);
+        }
+    }
+}
+
+// non-blocking server for all of this node's listening ports, one selector thread for all of them
+// connections are read as they have data, and each complete message (binary frame, or an xml
+// document once the sender closes) is decoded and handed to a bounded processing pool
+class NioServer implements Runnable {
+    // singleton
+    private static NioServer instance;
+    private Selector selector; // one selector for every listening port and connection
+    private ThreadPoolExecutor pool; // processes complete messages
+    private ConcurrentLinkedQueue<ServerSocketChannel> pendingListeners; // registered from the selector thread
+    private ConcurrentHashMap<ServerSocketChannel, Listener<?>> listeners; // handler for each port
+    private static final int READ_BUFFER = 8192; // starting read buffer per connection
+
+    // handler called on the processing pool for each message received
+    interface MessageHandler<T> {
+        void handle(T message);
+    }
+
+    // private constructor, since this is a singleton
+    private NioServer() throws IOException {
+        selector = Selector.open();
+        pendingListeners = new ConcurrentLinkedQueue<>();
+        listeners = new ConcurrentHashMap<>();
+        // -Dblockchain.ioWorkers=N and -Dblockchain.ioQueue=N to override
+        int workers = Integer.getInteger("blockchain.ioWorkers", Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger("blockchain.ioQueue", 1024);
+        // when the pool is full the selector thread runs the message itself
+        // which stops it reading, so senders get pushed back by TCP instead of us queueing forever
+        pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queue), new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nio-worker-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        Metrics.getInstance().gauge("blockchain_io_queue_depth", "received messages waiting for the processing pool",
+            () -> pool.getQueue().size());
+        Thread t = new Thread(this, "nio-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized NioServer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new NioServer();
+        }
+        return instance;
+    }
+
+    // start listening on a port, each message of type c is passed to handler
+    public <T> void listen(int port, int backlog, Class<T> c, MessageHandler<T> handler) throws IOException {
+        listen(port, backlog, c, Collections.singletonList(c), handler);
+    }
+
+    // same, for a port that gets more than one type of message- c is what they have in common
+    // binary frames say what they are, xml is read as whichever of xmlTypes its root element is for
+    public <T> void listen(int port, int backlog, Class<T> c, List<Class<? extends T>> xmlTypes, MessageHandler<T> handler) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(port), backlog);
+        listeners.put(server, new Listener<>(c, xmlTypes, handler, port));
+        // channels have to be registered from the selector thread, so queue it and wake it up
+        pendingListeners.add(server);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                ServerSocketChannel pending;
+                while ((pending = pendingListeners.poll()) != null) {
+                    pending.register(selector, SelectionKey.OP_ACCEPT, listeners.get(pending));
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                    } else if (key.isReadable()) {
+                        ((Connection<?>) key.attachment()).read(key);
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println("NioServer error: " + ex);
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // accept every waiting connection on this port
+    private void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        Listener<?> listener = (Listener<?>) key.attachment();
+        SocketChannel client;
+        while ((client = server.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, listener.newConnection());
+        }
+    }
+
+    // what to do with messages on one port
+    class Listener<T> {
+        private Class<T> type; // class we expect on this port
+        private List<Class<? extends T>> xmlTypes; // classes xml on this port is read as
+        private MessageHandler<T> handler; // who gets them
+        private Metrics.Counter bytesIn; // bytes read on this port
+
+        private Listener(Class<T> c, List<Class<? extends T>> x, MessageHandler<T> h, int port) {
+            type = c;
+            xmlTypes = x;
+            handler = h;
+            bytesIn = Metrics.getInstance().counter("blockchain_bytes_in_total", "bytes received, by channel",
+                "channel", Membership.getInstance().getChannel(port));
+        }
+
+        private Connection<T> newConnection() {
+            return new Connection<>(this);
+        }
+
+        // decode and handle on the processing pool
+        private void dispatchFrame(int frameType, byte[] payload) {
+            pool.execute(() -> {
+                try {
+                    handler.handle(type.cast(WireProtocol.decode(frameType, payload)));
+                } catch (Exception ex) {
+                    System.out.println("NioServer bad frame: " + ex);
+                }
+            });
+        }
+
+        private void dispatchXml(byte[] xml) {
+            pool.execute(() -> {
+                try {
+                    String text = new String(xml, java.nio.charset.StandardCharsets.UTF_8).trim();
+                    handler.handle(XmlSerializer.getInstance().unmarshal(text, xmlTypes));
+                } catch (Exception ex) {
+                    System.out.println("NioServer bad xml: " + ex);
+                }
+            });
+        }
+    }
+
+    // read state for one connection
+    class Connection<T> {
+        private Listener<T> listener; // port this connection came in on
+        private ByteBuffer buffer; // bytes read, not yet made into a message
+        private Boolean binary; // null until we see the first byte
+        private ByteArrayOutputStream xml; // xml connections collect everything until the sender closes
+
+        private Connection(Listener<T> l) {
+            listener = l;
+            buffer = ByteBuffer.allocate(READ_BUFFER);
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                int n = channel.read(buffer);
+                if (n > 0) {
+                    listener.bytesIn.add(n);
+                }
+                buffer.flip();
+                if (binary == null && buffer.hasRemaining()) {
+                    // first byte picks the format for the whole connection
+                    binary = buffer.get(buffer.position()) == WireProtocol.MAGIC;
+                    if (!binary) {
+                        xml = new ByteArrayOutputStream();
+                    }
+                }
+                if (Boolean.TRUE.equals(binary)) {
+                    while (nextFrame()) {
+                        // keep going, there may be several frames in one read
+                    }
+                } else if (xml != null) {
+                    xml.write(buffer.array(), buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                }
+                buffer.compact();
+                if (n == -1) {
+                    // sender is done
+                    if (xml != null && xml.size() > 0) {
+                        listener.dispatchXml(xml.toByteArray());
+                    }
+                    close(key);
+                }
+            } catch (IOException ex) {
+                System.out.println("NioServer connection error: " + ex);
+                close(key);
+            }
+        }
+
+        // take one whole frame off the buffer, if there is one. buffer is in read mode
+        private boolean nextFrame() throws IOException {
+            int start = buffer.position();
+            if (buffer.remaining() < 4) {
+                return false;
+            }
+            if (buffer.get(start) != WireProtocol.MAGIC) {
+                throw new IOException("lost frame sync");
+            }
+            if (buffer.get(start + 1) != WireProtocol.VERSION) {
+                throw new IOException("unsupported wire version: " + buffer.get(start + 1));
+            }
+            int frameType = buffer.get(start + 2);
+            // varint payload length
+            long length = 0;
+            int pos = start + 3;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= buffer.limit()) {
+                    return false;
+                }
+                if (shift >= 35) {
+                    throw new IOException("bad frame length");
+                }
+                int b = buffer.get(pos++);
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length > WireProtocol.MAX_PAYLOAD) {
+                throw new IOException("bad frame length: " + length);
+            }
+            int frameEnd = pos + (int) length;
+            if (frameEnd > buffer.limit()) {
+                // not all here yet, make sure the whole frame will fit
+                int frameSize = frameEnd - start;
+                if (frameSize > buffer.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+                    bigger.put(buffer);
+                    bigger.flip();
+                    buffer = bigger;
+                }
+                return false;
+            }
+            byte[] payload = new byte[(int) length];
+            buffer.position(pos);
+            buffer.get(payload);
+            listener.dispatchFrame(frameType, payload);
+            return true;
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+    }
+}
+
+// class to receive marshalled public key
+// reads in public key
+class PublicKeyStore {
+    // concurrenthashmap to store mapping of all public keys to pid's
+    private static ConcurrentHashMap<Integer, byte[]> pubKeyHashMap = new ConcurrentHashMap<>();
+    // the same keys already decoded, so verifying a signature doesn't decode the key every time
+    private static ConcurrentHashMap<Integer, PublicKey> decodedKeys = new ConcurrentHashMap<>();
+    // signature scheme each pid's key is for
+    private static ConcurrentHashMap<Integer, SignatureScheme> schemes = new ConcurrentHashMap<>();
+    private int port; // port to use
+    private int q_len = Ports.getInstance().getBacklog(); // length of the accept queue
+    private BlockchainNode blockchainNode; // blockchain node that owns this class
+
+    public PublicKeyStore(int p, BlockchainNode bc) {
+        // figure out which port we will look for connection on
+        port = Membership.getInstance().getSelf().getKeyPort();
+        // set the blockchian node to the calling process (which passes itself into constructor)
+        blockchainNode = bc;
+    }
+
+    // return public key for specified pid
+    public static byte[] getPublicKey(int pid) {
+        return pubKeyHashMap.get(pid);
+    }
+
+    // return decoded public key for specified pid, or null if we don't have one
+    // keys are decoded once, when they are received
+    public static PublicKey getDecodedKey(int pid) {
+        return decodedKeys.get(pid);
+    }
+
+    // return signature scheme of the key for specified pid, or null if we don't have one
+    public static SignatureScheme getScheme(int pid) {
+        return schemes.get(pid);
+    }
+
+    // add this pid/publickey pair to hash map
+    // and decode it now, rather than on the first block we verify
+    public static void storeKey(KeyHash pubKeyHash) {
+        pubKeyHashMap.put(pubKeyHash.getPid(), pubKeyHash.getPublicKey());
+        try {
+            SignatureScheme scheme = SignatureScheme.forName(pubKeyHash.getScheme());
+            decodedKeys.put(pubKeyHash.getPid(), scheme.decode(pubKeyHash.getPublicKey()));
+            schemes.put(pubKeyHash.getPid(), scheme);
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            System.out.println("Error converting public key: " + ex);
+            decodedKeys.remove(pubKeyHash.getPid());
+            schemes.remove(pubKeyHash.getPid());
+        }
+    }
+
+    public void start() {
+        try {
+            // listen on correct port #, the shared NioServer accepts and reads connections
+            // and hands each KeyHash received to addKey on its processing pool
+            // gossip repair digests come in on this port too
+            NioServer.getInstance().listen(port, q_len, Object.class, Arrays.asList(KeyHash.class, Digest.class), this::receive);
+        } catch (IOException ex) {
+            // exception stuff
+            System.out.println("PublicKeyStore error: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    // a key, or a digest from a member asking what it's missing
+    private void receive(Object message) {
+        if (message instanceof KeyHash) {
+            addKey((KeyHash) message);
+        } else if (message instanceof Digest) {
+            Gossip.repair((Digest) message);
+        }
+    }
+
+    // adds received keys to instance hash map
+    private void addKey(KeyHash pubKeyHash) {
+        try {
+            // notify user new public key received
+            System.out.println("Received public key: " + pubKeyHash.getPid());
+            byte[] knownKey = getPublicKey(pubKeyHash.getPid());
+            storeKey(pubKeyHash);
+            // the key also says where the node is, unless it's our own or it didn't say
+            Member m = Member.of(pubKeyHash);
+            if (m == null || m.getId() == blockchainNode.getPid()) {
+                return;
+            }
+            if (pubKeyHash.isLeaving()) {
+                Membership.getInstance().leave(m);
+                return;
+            }
+            // news is a node we hadn't heard from, or one that's restarted with a new key
+            // tell it about us, and pass it on so everyone else hears about it too
+            // (they answer it themselves, and only pass on news, so this dies out)
+            boolean restarted = knownKey != null && !Arrays.equals(knownKey, pubKeyHash.getPublicKey());
+            if (Membership.getInstance().join(m) || restarted) {
+                KeyHash ours = Membership.getInstance().getSelf().describe(
+                    new CreateXml().createKeyHash(blockchainNode.getPid(), blockchainNode.getPublicKey()), false);
+                byte[] data = WireProtocol.toWire(ours);
+                if (data != null) {
+                    PeerLinkManager.getInstance().getLink(m.getHost(), m.getKeyPort()).send(data);
+                }
+                new BlockchainNodeMulticast(pubKeyHash);
+            }
+        } catch (Exception ex) {
+            // exception stuff
+            System.out.println("PublicKeyStore error: " + ex);
+            ex.printStackTrace();
+        }
+    }
+}
+
+// the blockchain, kept on disk and read back through memory mapped segments
+// segments BlockchainLedger-000000.blk, -000001.blk... hold the blocks as WireProtocol frames
+// BlockchainLedger.index is a sidecar index with one fixed size entry per block height:
+// segment(4) | offset(8) | length(4) | blockId hash(8) | difficulty(4) | solver(4)
+// and BlockchainLedger.records has one entry per record in a block of records, in height order:
+// height(4) | record id hash(8)
+// so opening a ledger only maps the index, and any block can be read straight from its segment
+// the newest blocks (and any the writer hasn't finished with yet) are also kept on the heap
+class Ledger extends AbstractList<BlockchainBlock> {
+    public static final String PREFIX = "BlockchainLedger-";
+    public static final String SUFFIX = ".blk";
+    public static final String INDEX_FILE = "BlockchainLedger.index";
+    // index from before solvers were kept in it
+    private static final String OLD_INDEX_FILE = "BlockchainLedger.idx";
+    public static final int ENTRY_SIZE = 32; // bytes per index entry
+    public static final String RECORDS_FILE = "BlockchainLedger.records";
+    public static final int RECORD_ENTRY_SIZE = 12; // bytes per records file entry
+    private static final int RECENT = 256; // newest blocks kept on the heap
+    // add() to the writer being done with the block, written and synced as FsyncPolicy says
+    private static final Metrics.Histogram APPEND_LATENCY = Metrics.getInstance().histogram(
+        "blockchain_ledger_append_seconds", "time from appending a block to the ledger to it being on disk");
+    private File dir; // directory the ledger lives in
+    private LedgerWriter writer; // appends blocks and index entries
+    private MappedByteBuffer indexMap; // index entries that were on disk when we opened
+    private int mappedEntries; // number of entries in indexMap
+    private MappedByteBuffer recordMap; // records file entries for those blocks
+    private int mappedRecords; // number of entries in recordMap
+    private int persisted; // blocks written to the ledger, in order
+    private int[] entrySegment = new int[16]; // entries written since we opened
+    private long[] entryOffset = new long[16];
+    private int[] entryLength = new int[16];
+    private long[] entryIdHash = new long[16];
+    private int[] entryDifficulty = new int[16];
+    private int[] entrySolver = new int[16];
+    private ArrayList<BlockchainBlock> pending; // appended, but not written yet
+    private BlockchainBlock[] recentBlocks; // ring of the newest blocks
+    private int[] recentHeights; // height of each block in the ring
+    private HashMap<Integer, MappedByteBuffer> segmentMaps; // mapped segments
+    private LongIntHashMap idIndex; // blockId hash -> height, built the first time it's needed
+    private final Object appendLock = new Object(); // keeps appends in order on the way to the writer
+
+    // gets each id in the chain, see forEachId
+    public interface IdVisitor {
+        void visit(long idHash, int height);
+    }
+
+    private Ledger(File d) {
+        dir = d;
+        pending = new ArrayList<>();
+        recentBlocks = new BlockchainBlock[RECENT];
+        recentHeights = new int[RECENT];
+        Arrays.fill(recentHeights, -1);
+        segmentMaps = new HashMap<>();
+    }
+
+    // open the ledger in this directory, creating it if it isn't there
+    public static Ledger open(File dir) throws IOException {
+        long start = System.nanoTime();
+        dir.mkdirs();
+        Ledger ledger = new Ledger(dir);
+        ledger.recover();
+        ledger.writer = new LedgerWriter(dir);
+        System.out.println("Opened ledger " + dir + ": " + ledger.persisted + " blocks in "
+            + (System.nanoTime() - start) / 1000000 + "ms");
+        return ledger;
+    }
+
+    // map the index, and index any blocks that made it to a segment but not the index
+    private void recover() throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        File recordsFile = new File(dir, RECORDS_FILE);
+        // an old index, or one without a records file next to it, is rebuilt from the segments
+        boolean rebuild = new File(dir, OLD_INDEX_FILE).delete();
+        if (!recordsFile.exists() && indexFile.delete()) {
+            rebuild = true;
+        }
+        if (rebuild) {
+            System.out.println("Ledger recovery: rebuilding " + indexFile + " from the segments");
+        }
+        try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel records = FileChannel.open(recordsFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // drop a partly written entry at the end
+            long entries = index.size() / ENTRY_SIZE;
+            if (entries > Integer.MAX_VALUE) {
+                throw new IOException("ledger index too large");
+            }
+            index.truncate(entries * ENTRY_SIZE);
+            // pick up where the index ends
+            int segment = 0;
+            long offset = 0;
+            if (entries > 0) {
+                ByteBuffer last = ByteBuffer.allocate(ENTRY_SIZE);
+                index.read(last, (entries - 1) * ENTRY_SIZE);
+                last.flip();
+                segment = last.getInt();
+                offset = last.getLong() + last.getInt();
+            }
+            // records are written before the index, so drop any for blocks past the end of it
+            long recordEntries = records.size() / RECORD_ENTRY_SIZE;
+            ByteBuffer height = ByteBuffer.allocate(4);
+            while (recordEntries > 0) {
+                height.clear();
+                records.read(height, (recordEntries - 1) * RECORD_ENTRY_SIZE);
+                if (height.getInt(0) < entries) {
+                    break;
+                }
+                recordEntries--;
+            }
+            records.truncate(recordEntries * RECORD_ENTRY_SIZE);
+            // scan the segments past that point for whole frames
+            records.position(records.size());
+            index.position(index.size());
+            File file;
+            while ((file = segmentFile(dir, segment)).exists()) {
+                try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(data.position(offset))));
+                    long good = offset;
+                    try {
+                        while (good < data.size()) {
+                            int length = frameLength(in);
+                            byte[] frame = new byte[length];
+                            in.readFully(frame, 0, length);
+                            BlockchainBlock b = (BlockchainBlock) decodeFrame(frame);
+                            records.write(recordEntries((int) entries, b));
+                            index.write(entry(segment, good, length, idHash(b.getBlockId()), difficulty(b), solver(b)));
+                            entries++;
+                            good += length;
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        // partial or bad frame at the end of the segment, cut it off
+                        System.out.println("Ledger recovery: truncating " + file + " at " + good);
+                        data.truncate(good);
+                    }
+                }
+                segment++;
+                offset = 0;
+            }
+            records.force(false);
+            index.force(false);
+            mappedEntries = (int) entries;
+            persisted = mappedEntries;
+            indexMap = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+            mappedRecords = (int) (records.size() / RECORD_ENTRY_SIZE);
+            recordMap = records.map(FileChannel.MapMode.READ_ONLY, 0, records.size());
+        }
+    }
+
+    // reads one frame header from the stream into a byte array, returns its total length
+    // the header bytes are not consumed- caller reads the whole frame after
+    private static int frameLength(DataInputStream in) throws IOException {
+        in.mark(16);
+        if (in.readByte() != WireProtocol.MAGIC) {
+            throw new IOException("bad frame");
+        }
+        in.readByte(); // version
+        in.readByte(); // type
+        int header = 3;
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            header++;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        in.reset();
+        if (length > WireProtocol.MAX_PAYLOAD) {
+            throw new IOException("bad frame length: " + length);
+        }
+        return header + (int) length;
+    }
+
+    // decode a whole frame, including MAGIC
+    private static Object decodeFrame(byte[] frame) throws IOException {
+        if (frame[0] != WireProtocol.MAGIC) {
+            throw new IOException("bad frame");
+        }
+        return WireProtocol.readFrame(new ByteArrayInputStream(frame, 1, frame.length - 1));
+    }
+
+    public static ByteBuffer entry(int segment, long offset, int length, long idHash, int difficulty, int solver) {
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putInt(segment).putLong(offset).putInt(length).putLong(idHash).putInt(difficulty).putInt(solver);
+        buf.flip();
+        return buf;
+    }
+
+    // records file entries for a block at this height, empty if it isn't a block of records
+    public static ByteBuffer recordEntries(int height, BlockchainBlock b) {
+        if (b.getRecords() == null) {
+            return ByteBuffer.allocate(0);
+        }
+        List<String> ids = b.getRecordIds();
+        ByteBuffer buf = ByteBuffer.allocate(ids.size() * RECORD_ENTRY_SIZE);
+        for (String id : ids) {
+            buf.putInt(height).putLong(idHash(id));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // difficulty recorded in a block, 0 if it has none
+    public static int difficulty(BlockchainBlock b) {
+        return b.getDifficulty() == null ? 0 : b.getDifficulty();
+    }
+
+    // node that solved a block, -1 if it has none (or not one we can read)
+    public static int solver(BlockchainBlock b) {
+        try {
+            return Integer.parseInt(b.getSolvedProcessId());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // 64 bit hash of a blockId or record id, for the index and the records file
+    public static long idHash(String id) {
+        byte[] h = CalcHashHelper.sha256().digest(String.valueOf(id).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(h).getLong();
+    }
+
+    public static File segmentFile(File dir, int n) {
+        return new File(dir, PREFIX + String.format("%06d", n) + SUFFIX);
+    }
+
+    // number of blocks in the chain
+    public synchronized int size() {
+        return persisted + pending.size();
+    }
+
+    // block at this height, 0 is the first block
+    public BlockchainBlock get(int height) {
+        synchronized (this) {
+            if (height < 0 || height >= size()) {
+                throw new IndexOutOfBoundsException("height " + height + ", size " + size());
+            }
+            int slot = height % RECENT;
+            if (recentHeights[slot] == height) {
+                return recentBlocks[slot];
+            }
+            if (height >= persisted) {
+                return pending.get(height - persisted);
+            }
+        }
+        try {
+            return read(height);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("can't read block " + height + " from ledger", ex);
+        }
+    }
+
+    // last block in the chain, or null if its empty
+    public BlockchainBlock peek() {
+        int size = size();
+        return size == 0 ? null : get(size - 1);
+    }
+
+    // append a block to the chain, it is written to disk in the background
+    public boolean add(BlockchainBlock b) {
+        synchronized (appendLock) {
+            synchronized (this) {
+                int height = size();
+                pending.add(b);
+                recentBlocks[height % RECENT] = b;
+                recentHeights[height % RECENT] = height;
+                if (idIndex != null) {
+                    idIndex.putIfAbsent(idHash(b.getBlockId()), height);
+                }
+            }
+            // the writer calls back in the same order we append
+            long start = System.nanoTime();
+            writer.append(b, e -> {
+                APPEND_LATENCY.recordSince(start);
+                written(e);
+            });
+        }
+        return true;
+    }
+
+    // writer is done with the oldest pending block
+    private synchronized void written(LedgerEntry e) {
+        int n = persisted - mappedEntries;
+        if (n == entrySegment.length) {
+            entrySegment = Arrays.copyOf(entrySegment, n * 2);
+            entryOffset = Arrays.copyOf(entryOffset, n * 2);
+            entryLength = Arrays.copyOf(entryLength, n * 2);
+            entryIdHash = Arrays.copyOf(entryIdHash, n * 2);
+            entryDifficulty = Arrays.copyOf(entryDifficulty, n * 2);
+            entrySolver = Arrays.copyOf(entrySolver, n * 2);
+        }
+        entrySegment[n] = e.segment;
+        entryOffset[n] = e.offset;
+        entryLength[n] = e.length;
+        entryIdHash[n] = e.idHash;
+        entryDifficulty[n] = e.difficulty;
+        entrySolver[n] = e.solver;
+        pending.remove(0);
+        persisted++;
+    }
+
+    // height of the first block with this id, or -1
+    public int indexOf(String blockId) {
+        long h = idHash(blockId);
+        int height;
+        synchronized (this) {
+            if (idIndex == null) {
+                // first lookup, build it from the index
+                idIndex = new LongIntHashMap(Math.max(16, size() * 2));
+                for (int i = 0; i < persisted; i++) {
+                    idIndex.putIfAbsent(entryIdHash(i), i);
+                }
+                for (int i = 0; i < pending.size(); i++) {
+                    idIndex.putIfAbsent(idHash(pending.get(i).getBlockId()), persisted + i);
+                }
+            }
+            height = idIndex.get(h, -1);
+        }
+        // 64 bit hashes can collide, so check its really the block
+        return (height >= 0 && String.valueOf(blockId).equals(String.valueOf(get(height).getBlockId()))) ? height : -1;
+    }
+
+    // difficulty of the block at this height, straight from the index
+    public synchronized int difficulty(int height) {
+        if (height < mappedEntries) {
+            return indexMap.getInt(height * ENTRY_SIZE + 24);
+        }
+        if (height < persisted) {
+            return entryDifficulty[height - mappedEntries];
+        }
+        return difficulty(pending.get(height - persisted));
+    }
+
+    // node that solved the block at this height, straight from the index
+    public synchronized int solver(int height) {
+        if (height < mappedEntries) {
+            return indexMap.getInt(height * ENTRY_SIZE + 28);
+        }
+        if (height < persisted) {
+            return entrySolver[height - mappedEntries];
+        }
+        return solver(pending.get(height - persisted));
+    }
+
+    // every blockId, and every record id in a block of records, with the height of its block
+    // ids of the blocks that were on disk when we opened come from the index and the records file,
+    // without reading the blocks. only blocks appended since then are read
+    public void forEachId(IdVisitor v) {
+        int size;
+        synchronized (this) {
+            for (int i = 0; i < mappedEntries; i++) {
+                v.visit(indexMap.getLong(i * ENTRY_SIZE + 16), i);
+            }
+            for (int i = 0; i < mappedRecords; i++) {
+                int pos = i * RECORD_ENTRY_SIZE;
+                v.visit(recordMap.getLong(pos + 4), recordMap.getInt(pos));
+            }
+            size = size();
+        }
+        for (int height = mappedEntries; height < size; height++) {
+            BlockchainBlock b = get(height);
+            v.visit(idHash(b.getBlockId()), height);
+            if (b.getRecords() != null) {
+                for (String id : b.getRecordIds()) {
+                    v.visit(idHash(id), height);
+                }
+            }
+        }
+    }
+
+    private long entryIdHash(int height) {
+        if (height < mappedEntries) {
+            return indexMap.getLong(height * ENTRY_SIZE + 16);
+        }
+        return entryIdHash[height - mappedEntries];
+    }
+
+    // read a block from its mapped segment
+    private BlockchainBlock read(int height) throws IOException {
+        int segment;
+        long offset;
+        int length;
+        synchronized (this) {
+            if (height < mappedEntries) {
+                int pos = height * ENTRY_SIZE;
+                segment = indexMap.getInt(pos);
+                offset = indexMap.getLong(pos + 4);
+                length = indexMap.getInt(pos + 12);
+            } else {
+                int n = height - mappedEntries;
+                segment = entrySegment[n];
+                offset = entryOffset[n];
+                length = entryLength[n];
+            }
+        }
+        ByteBuffer map = segmentMap(segment, offset + length);
+        byte[] frame = new byte[length];
+        // absolute reads on a duplicate, so readers don't share a position
+        ByteBuffer dup = map.duplicate();
+        dup.position((int) offset);
+        dup.get(frame);
+        return (BlockchainBlock) decodeFrame(frame);
+    }
+
+    // mapping for a segment, remapped if the segment has grown past what we mapped
+    private synchronized MappedByteBuffer segmentMap(int segment, long needed) throws IOException {
+        MappedByteBuffer map = segmentMaps.get(segment);
+        if (map == null || map.capacity() < needed) {
+            try (FileChannel ch = FileChannel.open(segmentFile(dir, segment).toPath(), StandardOpenOption.READ)) {
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            segmentMaps.put(segment, map);
+        }
+        return map;
+    }
+
+    // make sure everything appended is on disk
+    public void flush() {
+        writer.flush();
+    }
+
+    // directory the ledger lives in
+    public File getDir() {
+        return dir;
+    }
+}
+
+// where a block was written in the ledger
+class LedgerEntry {
+    int segment;
+    long offset;
+    int length;
+    long idHash;
+    int difficulty;
+    int solver;
+
+    LedgerEntry(int s, long o, int l, long h, int d, int v) {
+        segment = s;
+        offset = o;
+        length = l;
+        idHash = h;
+        difficulty = d;
+        solver = v;
+    }
+}
+
+// writes blocks to the end of the ledger, and their entries to the index
+// blocks are queued and written by one writer thread, which writes everything waiting as one group
+// and then syncs to disk depending on the fsync policy. a new segment is started at segmentBytes
+class LedgerWriter implements Runnable {
+    // when to force writes to disk
+    enum FsyncPolicy {
+        ALWAYS, // after every group of writes
+        INTERVAL, // at most every fsyncInterval ms
+        NEVER // leave it to the OS
+    }
+
+    private static final int MAX_GROUP = 1024; // most blocks written in one group
+    private File dir; // directory segments live in
+    private long segmentBytes; // roll to a new segment past this size
+    private FsyncPolicy fsyncPolicy; // when to force to disk
+    private long fsyncInterval; // ms between syncs for INTERVAL
+    private BlockingQueue<PendingAppend> queue; // blocks waiting to be written
+    private FileChannel channel; // current segment
+    private FileChannel index; // index file
+    private FileChannel records; // records file
+    private int height; // height of the next block written
+    private int segment; // current segment number
+    private long segmentSize; // bytes in current segment
+    private long lastSync; // when we last forced to disk
+    private boolean dirty; // written since last sync
+
+    // a block waiting to be written, callback is called once its group is written (and synced if ALWAYS)
+    private static class PendingAppend {
+        private BlockchainBlock block;
+        private java.util.function.Consumer<LedgerEntry> callback;
+
+        private PendingAppend(BlockchainBlock b, java.util.function.Consumer<LedgerEntry> c) {
+            block = b;
+            callback = c;
+        }
+    }
+
+    public LedgerWriter(File d) throws IOException {
+        // -Dblockchain.segmentBytes, -Dblockchain.fsync, -Dblockchain.fsyncInterval to override
+        dir = d;
+        segmentBytes = Long.getLong("blockchain.segmentBytes", 64L * 1024 * 1024);
+        fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("blockchain.fsync", "interval").toUpperCase());
+        fsyncInterval = Long.getLong("blockchain.fsyncInterval", 1000L);
+        queue = new ArrayBlockingQueue<>(4096);
+        index = FileChannel.open(new File(dir, Ledger.INDEX_FILE).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records = FileChannel.open(new File(dir, Ledger.RECORDS_FILE).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        height = (int) (index.size() / Ledger.ENTRY_SIZE);
+        // carry on from the last segment already on disk
+        segment = lastSegment();
+        Thread t = new Thread(this, "ledger-writer");
+        t.setDaemon(true);
+        t.start();
+        // don't lose the last group when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    // queue a block to be appended to the ledger
+    public void append(BlockchainBlock b, java.util.function.Consumer<LedgerEntry> callback) {
+        try {
+            queue.put(new PendingAppend(b, callback));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        List<PendingAppend> group = new ArrayList<>();
+        while (true) {
+            try {
+                // wait for something to write, then take everything else that's waiting too
+                group.add(queue.take());
+                queue.drainTo(group, MAX_GROUP - 1);
+                writeGroup(group);
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    // write a group of blocks, then sync depending on policy
+    private synchronized void writeGroup(List<PendingAppend> group) {
+        List<LedgerEntry> entries = new ArrayList<>(group.size());
+        try {
+            for (PendingAppend p : group) {
+                byte[] frame = WireProtocol.encode(p.block);
+                if (channel == null || (segmentSize > 0 && segmentSize + frame.length > segmentBytes)) {
+                    roll();
+                }
+                LedgerEntry e = new LedgerEntry(segment, segmentSize, frame.length, Ledger.idHash(p.block.getBlockId()),
+                    Ledger.difficulty(p.block), Ledger.solver(p.block));
+                ByteBuffer buf = ByteBuffer.wrap(frame);
+                while (buf.hasRemaining()) {
+                    segmentSize += channel.write(buf);
+                }
+                entries.add(e);
+            }
+            // then the record ids, before the index entries so there are never index entries without them
+            for (PendingAppend p : group) {
+                ByteBuffer buf = Ledger.recordEntries(height++, p.block);
+                while (buf.hasRemaining()) {
+                    records.write(buf);
+                }
+            }
+            // index entries go after the data they point to
+            for (LedgerEntry e : entries) {
+                ByteBuffer buf = Ledger.entry(e.segment, e.offset, e.length, e.idHash, e.difficulty, e.solver);
+                while (buf.hasRemaining()) {
+                    index.write(buf);
+                }
+            }
+            dirty = true;
+            long now = System.currentTimeMillis();
+            if (fsyncPolicy == FsyncPolicy.ALWAYS
+                    || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncInterval)) {
+                sync();
+            }
+        } catch (IOException ex) {
+            // catch any exceptions, print to console
+            // blocks that didn't make it stay on the heap
+            System.out.println("Error printing to disk: " + ex);
+            ex.printStackTrace();
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            group.get(i).callback.accept(entries.get(i));
+        }
+    }
+
+    // write out anything still queued and force it to disk
+    public void flush() {
+        List<PendingAppend> group = new ArrayList<>();
+        queue.drainTo(group);
+        if (!group.isEmpty()) {
+            writeGroup(group);
+        }
+        synchronized (this) {
+            try {
+                sync();
+            } catch (IOException ex) {
+                System.out.println("Error printing to disk: " + ex);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+            // data first, so the index never points past what's on disk
+            if (channel != null) {
+                channel.force(false);
+            }
+            records.force(false);
+            index.force(false);
+        }
+        dirty = false;
+        lastSync = System.currentTimeMillis();
+    }
+
+    // finish the current segment and open the next one
+    // the first time, this opens the last segment on disk to keep appending to it
+    private void roll() throws IOException {
+        if (channel != null) {
+            sync();
+            channel.close();
+            segment++;
+        }
+        File file = Ledger.segmentFile(dir, segment);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = channel.size();
+        if (segmentSize > 0 && segmentSize >= segmentBytes) {
+            // last segment on disk is already full
+            roll();
+        }
+    }
+
+    // highest segment number already on disk, 0 if there are none
+    private int lastSegment() {
+        int last = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(Ledger.PREFIX) && name.endsWith(Ledger.SUFFIX)) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(Ledger.PREFIX.length(), name.length() - Ledger.SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        return last;
+    }
+}
+
+// open addressing hash map from long keys to int values, no boxing
+class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongIntHashMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(4, capacity) - 1) << 1;
+        keys = new long[n];
+        values = new int[n];
+        used = new boolean[n];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(long key, int missing) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return missing;
+    }
+
+    // put key -> value unless key is already there
+    public void putIfAbsent(long key, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return;
+            }
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    // every key, in no particular order
+    public void forEachKey(java.util.function.LongConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                action.accept(keys[i]);
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                putIfAbsent(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
+
+// open addressing hash map from int to long, no boxing
+// keys can't be removed, which is fine for credit tallies that only grow
+class IntLongHashMap {
+    private int[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+
+    public IntLongHashMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(4, capacity) - 1) << 1;
+        keys = new int[n];
+        values = new long[n];
+        used = new boolean[n];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(int key, long missing) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return missing;
+    }
+
+    // put key -> value, replacing whatever was there
+    public void put(int key, long value) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
+
+// bloom filter over 64 bit id hashes, says when an id definitely hasn't been added
+// the bit positions come from the two halves of the hash, so it doesn't hash anything again
+class BloomFilter {
+    private static final int HASHES = 4; // bits set per id
+    private long[] words;
+    private long mask; // number of bits - 1, a power of 2
+
+    // at least this many bits
+    public BloomFilter(long bits) {
+        long n = Math.max(64, Long.highestOneBit(bits - 1) << 1);
+        words = new long[(int) (n >>> 6)];
+        mask = n - 1;
+    }
+
+    public long bits() {
+        return mask + 1;
+    }
+
+    public void add(long hash) {
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xFFFFFFFFL;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) & mask;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xFFFFFFFFL;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) & mask;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// class to manage verified blocks
+class VerifiedBlockServer {
+    private int pid; // process id
+    private int port; // port to use
+    private int q_len = Ports.getInstance().getBacklog(); // length of the accept queue
+    private BlockchainNode blockchainNode; // calling blockchain node - passed in constructor
+    // blocks received and waiting to be appended, -Dblockchain.verifiedQueue=N to override
+    private BlockingQueue<BlockchainBlock> inbound;
+    // blocks waiting for their parent to be our tip, by parent hash in upper case. only the appender touches it
+    private HashMap<String, Competitors> held;
+    // how long blocks for one parent are collected before the lowest hash is picked, -Dblockchain.settleWindow=N (ms)
+    private static final long SETTLE_WINDOW = Long.getLong("blockchain.settleWindow", 250L);
+    // how long a block waits for its parent before we give up on it, -Dblockchain.holdMillis=N (ms)
+    private static final long HOLD = Long.getLong("blockchain.holdMillis", 30000L);
+    private static final int MAX_HELD = 1024; // most parents we hold blocks for
+    private static final Metrics.Counter LOST = Metrics.getInstance().counter(
+        "blockchain_competing_blocks_lost_total", "blocks that lost to a lower hash on the same parent");
+    private static final Metrics.Counter EXPIRED = Metrics.getInstance().counter(
+        "blockchain_held_blocks_expired_total", "blocks dropped after waiting too long for their parent");
+
+    // every block we've had for one parent, and when the first of them came
+    private static class Competitors {
+        private final long first = System.nanoTime();
+        private final List<BlockchainBlock> blocks = new ArrayList<>();
+    }
+
+    // constructor
+    public VerifiedBlockServer(BlockchainNode bcNode) {
+        pid = bcNode.getPid(); // add pid
+        port = Membership.getInstance().getSelf().getVerifiedPort(); // get port number to listen on
+        blockchainNode = bcNode; // creating node
+        inbound = new ArrayBlockingQueue<>(Integer.getInteger("blockchain.verifiedQueue", 1024));
+        held = new HashMap<>();
+    }
+
+    public void start() {
+        // one thread appends, so blocks for the same parent are settled in one place
+        Thread appender = new Thread(this::appendBlocks, "verified-append");
+        appender.setDaemon(true);
+        appender.start();
+        try {
+            // listen on our port, the shared NioServer accepts and reads connections
+            // and hands each block received to receive on its processing pool
+            NioServer.getInstance().listen(port, q_len, BlockchainBlock.class, this::receive);
+        } catch (IOException ex) {
+            // exception stuff
+            System.out.println(ex);
+            ex.printStackTrace();
+        }
+    }
+
+    // queue a received block to be appended, waits if the queue is full like UnverifiedBlockConsumer.receive
+    private void receive(BlockchainBlock newBlock) {
+        // gossiping, we'll hear about most blocks more than once
+        // only the first copy is looked at, hold passes it on once its proof of work is checked
+        if (Gossip.ENABLED && (newBlock.getBlockId() == null || !Gossip.VERIFIED_SEEN.add(newBlock.getBlockId()))) {
+            return;
+        }
+        try {
+            inbound.put(newBlock);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // competing solutions are settled by parent: every block is held under the block it goes on,
+    // and once that parent is our tip and SETTLE_WINDOW has passed since the first block for it came,
+    // the one with the lowest hash is appended and the rest lose. so nodes that hear about the same
+    // competitors within the window all keep the same one, whatever order they came in
+    // blocks that come before their parent wait for it, up to HOLD
+    private void appendBlocks() {
+        List<BlockchainBlock> batch = new ArrayList<>();
+        long wait = -1; // nanos until the window on our tip closes, -1 if nothing is waiting on it
+        while (true) {
+            try {
+                BlockchainBlock b = wait < 0 ? inbound.take() : inbound.poll(wait, TimeUnit.NANOSECONDS);
+                if (b != null) {
+                    batch.add(b);
+                    inbound.drainTo(batch);
+                    for (BlockchainBlock block : batch) {
+                        hold(block);
+                    }
+                    expire();
+                }
+                wait = settle();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // put a block with the others for its parent, unless its proof of work is no good
+    // this is the one place a received block is hashed, the hash is kept in the block for settle and append
+    private void hold(BlockchainBlock b) {
+        try {
+            String hash = ChainVerifier.checkWork(b);
+            if (hash == null) {
+                System.out.println("Block " + b.getBlockId() + " failed hash check, not added to blockchain");
+                return;
+            }
+            b.setBlockHash(hash);
+            if (Gossip.ENABLED) {
+                // passed on straight away, so competitors reach everyone inside the settle window
+                Gossip.relay(b, Member::getVerifiedPort);
+            }
+            String parent = String.valueOf(b.getPreviousBlockHash()).toUpperCase();
+            Competitors c = held.get(parent);
+            if (c == null) {
+                if (held.size() >= MAX_HELD) {
+                    dropOldest();
+                }
+                c = new Competitors();
+                held.put(parent, c);
+            }
+            for (BlockchainBlock other : c.blocks) {
+                if (String.valueOf(other.getBlockId()).equals(b.getBlockId())) {
+                    // another copy of one we have
+                    return;
+                }
+            }
+            c.blocks.add(b);
+        } catch (RuntimeException ex) {
+            // a block we couldn't even hash, don't let it hold up the others
+            System.out.println("Verified block appender error: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    // append the winner for our tip, and for each tip after that, for as long as their windows have closed
+    // returns nanos until the window on our tip closes, or -1 if nothing is waiting on it
+    private long settle() {
+        while (true) {
+            String tipHash = BlockchainNode.getTip().getHash().toUpperCase();
+            Competitors c = held.get(tipHash);
+            if (c == null) {
+                return -1;
+            }
+            long left = c.first + TimeUnit.MILLISECONDS.toNanos(SETTLE_WINDOW) - System.nanoTime();
+            if (left > 0) {
+                return left;
+            }
+            held.remove(tipHash);
+            c.blocks.sort(Comparator.comparing(BlockchainBlock::getBlockHash, String.CASE_INSENSITIVE_ORDER));
+            BlockchainBlock winner = null;
+            for (BlockchainBlock b : c.blocks) {
+                if (winner != null) {
+                    System.out.println("Block " + b.getBlockId() + " lost to block " + winner.getBlockId()
+                        + " with a lower hash, not added to blockchain");
+                    LOST.increment();
+                } else if (addVerifiedBlock(b)) {
+                    winner = b;
+                }
+            }
+            if (winner == null) {
+                // none of them could go on our tip, nothing more to do until something new comes
+                return -1;
+            }
+        }
+    }
+
+    // forget blocks that have waited too long for their parent, it's not coming or it lost
+    private void expire() {
+        long now = System.nanoTime();
+        Iterator<Competitors> it = held.values().iterator();
+        while (it.hasNext()) {
+            Competitors c = it.next();
+            if (now - c.first > TimeUnit.MILLISECONDS.toNanos(HOLD)) {
+                EXPIRED.add(c.blocks.size());
+                it.remove();
+            }
+        }
+    }
+
+    // make room by dropping the blocks that have waited longest
+    private void dropOldest() {
+        String oldest = null;
+        long first = Long.MAX_VALUE;
+        for (Map.Entry<String, Competitors> e : held.entrySet()) {
+            if (e.getValue().first < first) {
+                first = e.getValue().first;
+                oldest = e.getKey();
+            }
+        }
+        if (oldest != null) {
+            EXPIRED.add(held.remove(oldest).blocks.size());
+        }
+    }
+
+    // handle received verified block, returns true if it was added to our chain
+    private boolean addVerifiedBlock(BlockchainBlock newBlock) {
+        try {
+            System.out.println("received new solved block, blockId: " + newBlock.getBlockId());
+            // add to new BlockchainBlcok, which appends it to our ledger on disk
+            // hold has already checked its hash
+            if (BlockchainNode.addBlockchainBlock(newBlock, newBlock.getBlockHash())) {
+                // block has been completed
+                // so remove from unverified queue
+                UnverifiedBlockConsumer.removeFromUnverifiedQueue(newBlock);
+                return true;
+            }
+        } catch (Exception ex) {
+            // exception stuff
+            System.out.println("Verified bock worker exception: " + ex);
+            ex.printStackTrace();
+        }
+        return false;
+    }
+}
+
+// class to handle multicast unverified blocks
+class UnverifiedBlockConsumer {
+    // SERVER
+    // class to do "work" on new block
+    private int port; // port we are going to look to receive on
+    private int q_len = Ports.getInstance().getBacklog(); // length of the accept queue
+    private static UnverifiedPool unverifiedQueue; // pool of unverified blocks
+    private static ExecutorService solver; // single thread that runs Solve for queued blocks
+    private static AtomicBoolean solveScheduled = new AtomicBoolean(); // a solver run is queued and hasn't started
+    private BlockchainNode blockchainNode; // creating process
+    // blocks received and waiting for their signatures to be checked, -Dblockchain.verifyQueue=N to override
+    private BlockingQueue<BlockchainBlock> inbound;
+    private ExecutorService verifiers; // checks signatures, -Dblockchain.verifyWorkers=N to override
+    private int verifyWorkers; // number of verifier threads
+    private int verifyBatch; // most blocks taken off inbound at once, -Dblockchain.verifyBatch=N to override
+    // time to check one received block's signature
+    private static final Metrics.Histogram VERIFY_LATENCY = Metrics.getInstance().histogram(
+        "blockchain_signature_verify_seconds", "time to verify the signature on a received block");
+
+    UnverifiedBlockConsumer(int p, BlockchainNode bcNode) {
+        // get instance of new SingleThread executor
+        port = p; // set port
+        unverifiedQueue = new UnverifiedPool(); // create new unverified pool of blocks
+        solver = Executors.newSingleThreadExecutor(); // solve one block at a time
+        blockchainNode = bcNode; // set owning process
+        inbound = new ArrayBlockingQueue<>(Integer.getInteger("blockchain.verifyQueue", 4096));
+        verifyWorkers = Math.max(1, Integer.getInteger("blockchain.verifyWorkers", Runtime.getRuntime().availableProcessors()));
+        verifyBatch = Math.max(1, Integer.getInteger("blockchain.verifyBatch", 256));
+        verifiers = Executors.newFixedThreadPool(verifyWorkers, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sig-verifier-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Metrics.getInstance().gauge("blockchain_unverified_pool_size", "records waiting to be sealed into a block",
+            () -> unverifiedQueue.size());
+        Metrics.getInstance().gauge("blockchain_unverified_pool_age_seconds", "how long the oldest record has been waiting",
+            () -> unverifiedQueue.getOldestAge() / 1e9);
+        Metrics.getInstance().gauge("blockchain_verify_queue_depth", "received blocks waiting for their signature to be checked",
+            () -> inbound.size());
+    }
+
+    public void start() {
+        // signatures are checked in batches on the verifier pool, off the network threads
+        Thread dispatcher = new Thread(this::verifyBatches, "sig-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        try {
+            // listen on our port, the shared NioServer accepts and reads connections
+            // and hands each block received to receive on its processing pool
+            NioServer.getInstance().listen(port, q_len, BlockchainBlock.class, this::receive);
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+    }
+
+    // queue a received block to have its signature checked
+    // when the queue is full this waits, which holds up the NioServer pool and then the selector,
+    // so senders are slowed down by TCP rather than us buffering without limit
+    private void receive(BlockchainBlock newBlock) {
+        // gossiping, a block we've already taken in is just another copy of it
+        if (Gossip.ENABLED && Gossip.UNVERIFIED_SEEN.contains(newBlock.getBlockId())) {
+            return;
+        }
+        try {
+            inbound.put(newBlock);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // take whatever has arrived, check the signatures in parallel, then admit the good ones in arrival order
+    private void verifyBatches() {
+        List<BlockchainBlock> batch = new ArrayList<>(verifyBatch);
+        while (true) {
+            try {
+                batch.add(inbound.take());
+                inbound.drainTo(batch, verifyBatch - 1);
+                // one chunk per verifier, so the batch is split evenly over the pool
+                int chunk = (batch.size() + verifyWorkers - 1) / verifyWorkers;
+                List<Callable<boolean[]>> tasks = new ArrayList<>();
+                for (int start = 0; start < batch.size(); start += chunk) {
+                    List<BlockchainBlock> part = batch.subList(start, Math.min(start + chunk, batch.size()));
+                    tasks.add(() -> {
+                        boolean[] ok = new boolean[part.size()];
+                        for (int i = 0; i < ok.length; i++) {
+                            long began = System.nanoTime();
+                            ok[i] = ChainVerifier.verifySignature(part.get(i));
+                            VERIFY_LATENCY.recordSince(began);
+                        }
+                        return ok;
+                    });
+                }
+                int start = 0;
+                for (Future<boolean[]> result : verifiers.invokeAll(tasks)) {
+                    int end = Math.min(start + chunk, batch.size());
+                    try {
+                        boolean[] ok = result.get();
+                        for (int i = start; i < end; i++) {
+                            admit(batch.get(i), ok[i - start]);
+                        }
+                    } catch (ExecutionException ex) {
+                        // verifySignature doesn't throw, but if it does only this chunk is lost
+                        // and its blocks are turned away (and logged) like any other we couldn't verify
+                        System.out.println("Signature verifier error: " + ex.getCause());
+                        ex.printStackTrace();
+                        for (int i = start; i < end; i++) {
+                            admit(batch.get(i), false);
+                        }
+                    }
+                    start = end;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // lock free, the mining engine calls this as each solve starts
+    public static boolean isUnverified(String blockId) {
+        return unverifiedQueue.contains(blockId);
+    }
+
+    // check every record in a block is still in the unverified queue
+    // i.e. no one has put any of them in the chain yet
+    public static boolean isUnverified(BlockchainBlock b) {
+        for (String id : b.getRecordIds()) {
+            if (!unverifiedQueue.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // method to remove a specified block from the unverified queue
+    public static void removeFromUnverifiedQueue(String blockId) {
+        unverifiedQueue.remove(blockId);
+    }
+
+    // remove every record in a block from the unverified queue
+    // and stop the miners if they're working on any of them
+    public static void removeFromUnverifiedQueue(BlockchainBlock b) {
+        List<String> ids = b.getRecordIds();
+        for (String id : ids) {
+            unverifiedQueue.remove(id);
+        }
+        MiningEngine.getInstance().cancel(ids);
+    }
+
+    // the unverified queue, Solve takes its batches from here
+    public static UnverifiedPool getUnverifiedQueue() {
+        return unverifiedQueue;
+    }
+
+    // method to verify signature
+    // uses this thread's Signature engine, see SignatureHelper
+    public static boolean verifySig(byte[] data, PublicKey key, byte[] sig, SignatureScheme scheme) throws Exception {
+        return SignatureHelper.verify(data, key, sig, scheme);
+    }
+
+    // a block whose signature has been checked- queue it and hand it to the solver
+    private void admit(BlockchainBlock newBlock, boolean verified) {
+        // verified against the creator's key and the scheme recorded in the block
+        if (!verified) {
+            // if not, someone tampered with it (or we don't have the creator's key)... so we just ignore the block
+            System.out.println("Signature NOT verified. Ignoring new block: " + newBlock.getBlockId());
+            return;
+        }
+        // if true, signature verified.. so continue on our way
+        System.out.println("Signature verified");
+        if (newBlock.getNonce() != null) {
+            // not a new block, so nothing for us to solve
+            return;
+        }
+        // if null nonce, this is a new block
+        // add to unverified queue
+        System.out.println("Received new unverified block, blockId: " + newBlock.getBlockId());
+        // add to unverified queue, a block we already have isn't solved twice
+        // then make sure the solver is going to look at the queue
+        // solver is a newSingleThreadExecutor(), so only one block is worked on at a time
+        // and the processing pool isn't held up while we mine
+        // gossiping, copies that were already on their way in when we took the first are dropped here,
+        // as are ones that turn up after the record is in the chain and gone from the queue
+        if (Gossip.ENABLED && !Gossip.UNVERIFIED_SEEN.add(newBlock.getBlockId())) {
+            return;
+        }
+        if (!unverifiedQueue.add(newBlock)) {
+            return;
+        }
+        // first time we've had it, so pass it on
+        if (Gossip.ENABLED) {
+            Gossip.relay(newBlock, Member::getUnverifiedPort);
+        }
+        if (solveScheduled.compareAndSet(false, true)) {
+            solver.submit(() -> {
+                solveScheduled.set(false);
+                Solve.getInstance().solveAll(blockchainNode);
+            });
+        }
+    }
+
+    // print queue to screen
+    public void printQueue(){
+        System.out.println("PRINT QUEUE:");
+        System.out.println(unverifiedQueue.toString());
+    }
+}
+
+// pool of unverified blocks waiting to be solved
+// indexed by blockId for constant time membership and removal, and kept in createTime order
+// so the oldest block can be found without scanning
+class UnverifiedPool {
+    private ConcurrentHashMap<String, Entry> blocks; // blockId -> block, and when we got it
+    private ConcurrentSkipListSet<BlockchainBlock> ordered; // same blocks, oldest first
+
+    // a block in the pool, with the System.nanoTime() it was added
+    private static class Entry {
+        private final BlockchainBlock block;
+        private final long received;
+
+        private Entry(BlockchainBlock b) {
+            block = b;
+            received = System.nanoTime();
+        }
+    }
+
+    public UnverifiedPool() {
+        blocks = new ConcurrentHashMap<>();
+        ordered = new ConcurrentSkipListSet<>();
+    }
+
+    // add a block, returns false if a block with this id is already in the pool
+    public boolean add(BlockchainBlock b) {
+        Entry e = new Entry(b);
+        if (blocks.putIfAbsent(b.getBlockId(), e) != null) {
+            return false;
+        }
+        ordered.add(b);
+        // removed while we were adding it, don't leave it behind in the ordering
+        if (blocks.get(b.getBlockId()) != e) {
+            ordered.remove(b);
+        }
+        // wake anyone waiting for the pool to fill
+        synchronized (this) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    // wait until there are at least n blocks in the pool, or millis have passed
+    public synchronized void awaitSize(int n, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (size() < n && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    // up to n of the oldest blocks in the pool, oldest first
+    public List<BlockchainBlock> oldest(int n) {
+        List<BlockchainBlock> list = new ArrayList<>(Math.min(n, size()));
+        for (BlockchainBlock b : ordered) {
+            if (list.size() == n) {
+                break;
+            }
+            list.add(b);
+        }
+        return list;
+    }
+
+    // is a block with this id in the pool, never blocks
+    public boolean contains(String blockId) {
+        return blockId != null && blocks.containsKey(blockId);
+    }
+
+    // remove the block with this id, returns it or null if it wasn't in the pool
+    public BlockchainBlock remove(String blockId) {
+        if (blockId == null) {
+            return null;
+        }
+        Entry e = blocks.remove(blockId);
+        if (e == null) {
+            return null;
+        }
+        ordered.remove(e.block);
+        return e.block;
+    }
+
+    // System.nanoTime() the block with this id was added, or -1 if it isn't in the pool
+    public long getReceived(String blockId) {
+        Entry e = blockId == null ? null : blocks.get(blockId);
+        return e == null ? -1 : e.received;
+    }
+
+    // how long the oldest block has been waiting, in nanoseconds, 0 if the pool is empty
+    public long getOldestAge() {
+        BlockchainBlock oldest = peek();
+        long received = oldest == null ? -1 : getReceived(oldest.getBlockId());
+        return received < 0 ? 0 : System.nanoTime() - received;
+    }
+
+    // oldest block in the pool, or null if its empty
+    public BlockchainBlock peek() {
+        try {
+            return ordered.first();
+        } catch (NoSuchElementException ex) {
+            return null;
+        }
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
+    public String toString() {
+        return ordered.toString();
+    }
+}
+
+class Solve {
+    private static Solve instance;
+
+    private Solve() {
+    }
+
+    public static Solve getInstance() {
+        if (instance == null) {
+            instance = new Solve();
+        }
+        return instance;
+    }
+
+    // most records batched into one block, -Dblockchain.blockRecords=N to override
+    private static final int BLOCK_RECORDS = Math.max(1, Integer.getInteger("blockchain.blockRecords", 64));
+    // how long to wait for a batch to fill before sealing what we have, -Dblockchain.blockWait=N (ms) to override
+    private static final long BLOCK_WAIT = Long.getLong("blockchain.blockWait", 200L);
+    private static final Metrics.Histogram RECEIPT_TO_SEAL = Metrics.getInstance().histogram(
+        "blockchain_receipt_to_seal_seconds", "time from a record reaching our pool to us sealing it into a block");
+    private static final Metrics.Histogram SEAL_TO_CHAIN = Metrics.getInstance().histogram(
+        "blockchain_seal_to_chain_seconds", "time from sealing a block to it being added to our chain");
+    // System.nanoTime() we sealed each of our blocks still on its way back to us, by blockId
+    private static ConcurrentHashMap<String, Long> sealed = new ConcurrentHashMap<>();
+    private static final int MAX_SEALED = 1024; // forget blocks that never came back after this many
+    // longest we wait after sealing for a block to go on the parent we sealed on, -Dblockchain.chainWait=N (ms) to override
+    private static final long CHAIN_WAIT = Long.getLong("blockchain.chainWait", 10000L);
+    private static final Object tipMoved = new Object(); // notified every time a block is added to the chain
+
+    // seal blocks from the unverified queue until its empty
+    public void solveAll(BlockchainNode blockchainNode) {
+        UnverifiedPool pool = UnverifiedBlockConsumer.getUnverifiedQueue();
+        try {
+            while (pool.size() > 0 && !Thread.currentThread().isInterrupted()) {
+                // give the batch a chance to fill up
+                pool.awaitSize(BLOCK_RECORDS, BLOCK_WAIT);
+                List<BlockchainBlock> batch = pool.oldest(BLOCK_RECORDS);
+                String parent = BlockchainNode.getTip().getHash();
+                if (!batch.isEmpty() && !solve(batch, blockchainNode) && untouched(batch, pool)
+                        && parent.equals(BlockchainNode.getTip().getHash())) {
+                    // mining gave up without anyone else taking the records or the chain moving on,
+                    // don't spin on the same batch
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a block was added to the chain, if we sealed it note how long that took
+    // whatever we're mining now sits on the old tip, so it's no use any more
+    public static void chained(BlockchainBlock b) {
+        Long sealedAt = sealed.remove(b.getBlockId());
+        if (sealedAt != null) {
+            SEAL_TO_CHAIN.recordSince(sealedAt);
+        }
+        MiningEngine.getInstance().cancelUnless(b.getBlockHash());
+        synchronized (tipMoved) {
+            tipMoved.notifyAll();
+        }
+    }
+
+    // wait until a block has gone on top of parent- ours, or a competitor's- or CHAIN_WAIT has passed
+    // the next block has to be sealed on that one, not on parent again
+    private static void awaitChained(String parent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CHAIN_WAIT;
+        synchronized (tipMoved) {
+            long left = CHAIN_WAIT;
+            while (parent.equalsIgnoreCase(BlockchainNode.getTip().getHash()) && left > 0) {
+                tipMoved.wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    // are all of these records still waiting in the pool
+    private static boolean untouched(List<BlockchainBlock> batch, UnverifiedPool pool) {
+        for (BlockchainBlock b : batch) {
+            if (!pool.contains(b.getBlockId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // solve is a synchronized method, so only one thread can execute at a time
+    // i.e. cannot have two threads trying to solve different unverified blocks
+    // the actual nonce search is split across the MiningEngine worker pool
+    // the records are sealed into one new block, proof of work is over its header,
+    // which covers the records through their merkle root
+    // returns true if we sealed the block
+    public synchronized boolean solve(List<BlockchainBlock> batch, BlockchainNode blockchainNode) {
+        BlockchainBlock workerBlock = new BlockchainBlock(); // the new block we are solving
+        workerBlock.setBlockId(UUID.randomUUID().toString());
+        workerBlock.setCreateTime(String.valueOf(System.currentTimeMillis()));
+        workerBlock.setRecords(new ArrayList<>(batch));
+        workerBlock.setMerkleRoot(Merkle.root(batch));
+
+        // add previous block ID to workerBlock
+        workerBlock.setPreviousBlockHash(blockchainNode.peekLastHash());
+        // difficulty is retargeted from the solve times already in the chain
+        workerBlock.setDifficulty(BlockchainNode.nextDifficulty());
+        // stamp when we started sealing, retargeting uses this
+        workerBlock.setSealTime(System.currentTimeMillis());
+
+        // hand the block off to the mining workers, blocks until solved or cancelled
+        BlockchainBlock solvedBlock = MiningEngine.getInstance().mine(workerBlock);
+        // print per worker hash rates, so we can size nodes
+        MiningEngine.getInstance().printHashRates();
+
+        // null means someone else solved it first (or we were interrupted)
+        if (solvedBlock == null) {
+            return false;
+        }
+        // make sure none of the records have been solved yet, and the chain hasn't moved on from our parent
+        if (UnverifiedBlockConsumer.isUnverified(workerBlock)
+                && workerBlock.getPreviousBlockHash().equalsIgnoreCase(BlockchainNode.getTip().getHash())) {
+            // if it does, announce it to the world
+            System.out.println("time: " + System.currentTimeMillis() + "\nWINNER! " + batch.size() + " records");
+            // copy the winning nonce back onto the block we were given
+            workerBlock.setNonce(solvedBlock.getNonce());
+            // add this process id to the solved process id
+            workerBlock.setSolvedProcessId(String.valueOf(blockchainNode.getPid()));
+            // sealed, so the block carries its own hash from here on
+            workerBlock.setBlockHash(CalcHashHelper.calc(workerBlock));
+            long now = System.nanoTime();
+            UnverifiedPool pool = UnverifiedBlockConsumer.getUnverifiedQueue();
+            for (BlockchainBlock b : batch) {
+                long received = pool.getReceived(b.getBlockId());
+                if (received >= 0) {
+                    RECEIPT_TO_SEAL.record(now - received);
+                }
+            }
+            if (sealed.size() >= MAX_SEALED) {
+                sealed.clear();
+            }
+            sealed.put(workerBlock.getBlockId(), now);
+            // create new multicast to send to all BlockchainNodes
+            // this only gets sent *if* this process is the one who solved
+            new BlockchainNodeMulticast(workerBlock);
+            // our block only becomes the tip once it's come back to us and been added, so wait for that
+            // (or for a competitor's to win) before sealing the next one. the records stay in the queue
+            // until then, so if our block loses they're still there to go in the next one
+            try {
+                awaitChained(workerBlock.getPreviousBlockHash());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+        return false;
+    }
+}
+
+// mining engine- splits the nonce search for a block across a pool of worker threads
+// the first worker to find a valid hash wins, and all the others are cancelled
+class MiningEngine {
+    // singleton
+    private static MiningEngine instance;
+    private int numWorkers; // number of mining workers, -Dblockchain.miners=N to override
+    private ExecutorService pool; // worker pool that does the hashing
+    private long[] hashCount; // number of hashes each worker has tried, lifetime
+    private long[] hashNanos; // time each worker has spent hashing, lifetime
+    private volatile Job current; // the solve in progress, null between solves
+    // from someone else chaining our records to every worker having stopped
+    private static final Metrics.Histogram CANCEL_LATENCY = Metrics.getInstance().histogram(
+        "blockchain_mining_cancel_seconds", "time from a block being chained that makes our mining useless to our miners stopping");
+
+    // private constructor, since this is a singleton
+    private MiningEngine() {
+        numWorkers = Integer.getInteger("blockchain.miners", Runtime.getRuntime().availableProcessors());
+        if (numWorkers < 1) {
+            numWorkers = 1;
+        }
+        hashCount = new long[numWorkers];
+        hashNanos = new long[numWorkers];
+        // daemon threads, so the miners never keep the process alive on their own
+        pool = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "miner-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // read from the counts workers already keep, which they add to as each solve ends
+        for (int i = 0; i < numWorkers; i++) {
+            int worker = i;
+            Metrics.getInstance().gauge("blockchain_miner_hashes_per_second", "lifetime hash rate of a mining worker",
+                () -> getHashRate(worker), "worker", String.valueOf(worker));
+            Metrics.getInstance().gauge("blockchain_miner_hashes", "hashes tried by a mining worker",
+                () -> getHashCount(worker), "worker", String.valueOf(worker));
+        }
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized MiningEngine getInstance() {
+        if (instance == null) {
+            instance = new MiningEngine();
+        }
+        return instance;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    // a solve in progress- the records it covers, the block it goes on, and the flag its workers stop on
+    private static class Job {
+        private final Set<String> records;
+        private final String parent; // previousBlockHash of the block being mined
+        private final AtomicBoolean found; // set by the winning worker, or by cancel
+        private volatile long cancelled; // System.nanoTime() cancel set found, 0 if it didn't
+
+        private Job(BlockchainBlock b, AtomicBoolean f) {
+            records = new HashSet<>(b.getRecordIds());
+            parent = String.valueOf(b.getPreviousBlockHash());
+            found = f;
+        }
+
+        private void cancel() {
+            long now = System.nanoTime();
+            if (found.compareAndSet(false, true)) {
+                cancelled = now;
+            }
+        }
+    }
+
+    // these records are in the chain now, stop mining them if that's what we're doing
+    // called as they leave the unverified queue, the workers see it on their next hash
+    public void cancel(Collection<String> recordIds) {
+        Job job = current;
+        if (job == null) {
+            return;
+        }
+        for (String id : recordIds) {
+            if (job.records.contains(id)) {
+                job.cancel();
+                return;
+            }
+        }
+    }
+
+    // the chain's tip is now this hash, stop mining if what we're mining goes on something else
+    // it would only be turned away
+    public void cancelUnless(String tipHash) {
+        Job job = current;
+        if (job != null && !job.parent.equalsIgnoreCase(String.valueOf(tipHash))) {
+            job.cancel();
+        }
+    }
+
+    // search for a random string that solves this block
+    // returns a solved copy of the block, or null if the block was solved elsewhere
+    public BlockchainBlock mine(BlockchainBlock block) {
+        // shared flag, first worker to flip it is the winner
+        // cancel flips it too, when another node's block takes our records
+        AtomicBoolean found = new AtomicBoolean(false);
+        Job job = new Job(block, found);
+        current = job;
+        // records may have been chained between Solve picking them and us starting, or the tip moved on
+        // cancel only sees those after they've happened, so checking here catches them
+        if (!UnverifiedBlockConsumer.isUnverified(block)
+                || !BlockchainNode.getTip().getHash().equalsIgnoreCase(String.valueOf(block.getPreviousBlockHash()))) {
+            current = null;
+            return null;
+        }
+        // each solve starts at a random nonce, so nodes don't all search the same nonces
+        long startNonce = ThreadLocalRandom.current().nextLong();
+        // counted down by each worker as it stops, so the hash rates are up to date when we return
+        CountDownLatch stopped = new CountDownLatch(numWorkers);
+        CompletionService<BlockchainBlock> completionService = new ExecutorCompletionService<>(pool);
+        List<Future<BlockchainBlock>> futures = new ArrayList<>();
+        // worker i tries nonce i, i + numWorkers, i + 2*numWorkers...
+        for (int i = 0; i < numWorkers; i++) {
+            futures.add(completionService.submit(new MiningWorker(i, block.copy(), startNonce, found, stopped)));
+        }
+        BlockchainBlock solved = null;
+        try {
+            // wait for the workers to come back, stop at the first winner
+            for (int i = 0; i < numWorkers && solved == null; i++) {
+                solved = completionService.take().get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            System.out.println("MiningEngine exception: " + ex.getCause());
+            ex.printStackTrace();
+        } finally {
+            // tell everyone else to stop, and interrupt any worker still going
+            found.set(true);
+            for (Future<BlockchainBlock> f : futures) {
+                f.cancel(true);
+            }
+            // workers check the flag on every hash, so this is quick
+            try {
+                stopped.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            current = null;
+            if (job.cancelled != 0) {
+                CANCEL_LATENCY.recordSince(job.cancelled);
+            }
+        }
+        return solved;
+    }
+
+    // print lifetime hashes/sec for each worker
+    public void printHashRates() {
+        double total = 0;
+        for (int i = 0; i < numWorkers; i++) {
+            double rate = getHashRate(i);
+            total += rate;
+            System.out.println("miner-" + i + ": " + String.format("%.1f", rate) + " hashes/sec");
+        }
+        System.out.println("total: " + String.format("%.1f", total) + " hashes/sec on " + numWorkers + " workers");
+    }
+
+    // lifetime hashes/sec for one worker
+    public synchronized double getHashRate(int worker) {
+        if (hashNanos[worker] == 0) {
+            return 0;
+        }
+        return hashCount[worker] * 1e9 / hashNanos[worker];
+    }
+
+    // lifetime hashes tried by one worker
+    public synchronized long getHashCount(int worker) {
+        return hashCount[worker];
+    }
+
+    // workers report their counts here when they finish
+    private synchronized void record(int worker, long hashes, long nanos) {
+        hashCount[worker] += hashes;
+        hashNanos[worker] += nanos;
+    }
+
+    // worker that searches its own slice of the nonce space
+    class MiningWorker implements Callable<BlockchainBlock> {
+        private int workerId; // which slice of the nonce space is ours
+        private BlockchainBlock block; // our own copy of the block, so we can set the nonce
+        private long startNonce; // random starting nonce for this solve
+        private AtomicBoolean found; // set once anybody wins
+        private CountDownLatch stopped; // count down when we stop
+
+        private MiningWorker(int id, BlockchainBlock b, long n, AtomicBoolean f, CountDownLatch s) {
+            workerId = id;
+            block = b;
+            startNonce = n;
+            found = f;
+            stopped = s;
+        }
+
+        public BlockchainBlock call() {
+            long hashes = 0;
+            long start = System.nanoTime();
+            long nonce = startNonce + workerId;
+            try {
+                // everything in the header except the nonce is fixed for this solve
+                // so hash that prefix once, and clone the digest state for every attempt
+                MessageDigest prefixState = new BlockHeader(block).getPrefixState();
+                int difficulty = block.getDifficulty(); // leading zero bits we need
+                byte[] nonceBytes = new byte[8]; // reused for every attempt
+                byte[] hash = new byte[BlockHeader.HASH_LENGTH]; // reused for every attempt
+                // found is set by the winner, or by cancel when another node chains our records
+                while (!found.get() && !Thread.currentThread().isInterrupted()) {
+                    // finish the hash from the saved prefix state, just adding the nonce
+                    MessageDigest md = (MessageDigest) prefixState.clone();
+                    BlockHeader.putLong(nonceBytes, 0, nonce);
+                    md.update(nonceBytes);
+                    md.digest(hash, 0, hash.length);
+                    hashes++;
+                    // check our work requirement on the raw hash bytes
+                    if (Difficulty.meetsTarget(hash, difficulty)) {
+                        // only the first worker to get here wins
+                        if (found.compareAndSet(false, true)) {
+                            block.setNonce(nonce);
+                            return block;
+                        }
+                        return null;
+                    }
+                    nonce += numWorkers;
+                }
+            } catch (CloneNotSupportedException | DigestException ex) {
+                System.out.println("MiningWorker exception: " + ex);
+                ex.printStackTrace();
+            } finally {
+                record(workerId, hashes, System.nanoTime() - start);
+                stopped.countDown();
+            }
+            return null;
+        }
+    }
+}
+
+class CalcHashHelper {
+    // one SHA-256 digest per thread, so we aren't looking up the provider on every hash
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    // returns this thread's SHA-256 digest, already reset
+    public static MessageDigest sha256() {
+        MessageDigest md = sha256.get();
+        md.reset();
+        return md;
+    }
+
+    // hash of the block is the SHA-256 of its binary header
+    public static byte[] hash(BlockchainBlock b) {
+        return sha256().digest(new BlockHeader(b).getBytes());
+    }
+
+    public static String calc(BlockchainBlock b) {
+        String hexRes = null;
+        try {
+            // convert to hex
+            hexRes = DatatypeConverter.printHexBinary(hash(b));
+        } catch (Exception ex) {
+            System.out.println("CalcHash exception");
+            ex.printStackTrace();
+        }
+        // return hex value
+        return hexRes;
+    }
+
+}
+
+// signature schemes a node can sign with, -Dblockchain.signature=<name> to pick one
+// the scheme goes out with the node's public key, and is recorded in every block it signs
+// blocks from before schemes were recorded have none, and were signed with rsa-1024
+enum SignatureScheme {
+    RSA_1024("rsa-1024", "RSA", "SHA1withRSA"),
+    RSA_2048("rsa-2048", "RSA", "SHA256withRSA"),
+    ECDSA_P256("ecdsa-p256", "EC", "SHA256withECDSA"),
+    ED25519("ed25519", "Ed25519", "Ed25519");
+
+    // scheme this node signs with, rsa-2048 unless asked for something else
+    // on the JDK providers ed25519 generates keys and signs fastest, with the smallest keys and signatures,
+    // but rsa verifies more than 10x faster- and every node verifies every record, so rsa is the default
+    public static final SignatureScheme CONFIGURED = forName(System.getProperty("blockchain.signature", "rsa-2048"));
+
+    private String name; // name on the command line and in keys and blocks
+    private String keyAlgorithm; // KeyPairGenerator and KeyFactory algorithm
+    private String signatureAlgorithm; // Signature algorithm
+
+    SignatureScheme(String name, String keyAlgorithm, String signatureAlgorithm) {
+        this.name = name;
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    // scheme for a name, null (nothing recorded) is the original rsa-1024
+    public static SignatureScheme forName(String name) {
+        if (name == null) {
+            return RSA_1024;
+        }
+        for (SignatureScheme scheme : values()) {
+            if (scheme.name.equalsIgnoreCase(name)) {
+                return scheme;
+            }
+        }
+        throw new IllegalArgumentException("unknown signature scheme: " + name);
+    }
+
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+        switch (this) {
+            case RSA_1024:
+                keyGen.initialize(1024);
+                break;
+            case RSA_2048:
+                keyGen.initialize(2048);
+                break;
+            case ECDSA_P256:
+                keyGen.initialize(new java.security.spec.ECGenParameterSpec("secp256r1"));
+                break;
+            default:
+                // Ed25519 has nothing to set
+                break;
+        }
+        return keyGen.generateKeyPair();
+    }
+
+    // decode an X509 encoded public key
+    // source: https://stackoverflow.com/questions/35867880/convert-byte-array-back-to-public-key
+    public PublicKey decode(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    public String toString() {
+        return name;
+    }
+}
+
+// one Signature engine per thread and scheme, so signing and verifying don't look up the provider every time
+// the engine is only initialised again when the key changes
+class SignatureHelper {
+    private static final ThreadLocal<Map<SignatureScheme, Engine>> signers = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<SignatureScheme, Engine>> verifiers = ThreadLocal.withInitial(HashMap::new);
+
+    // a Signature and the key it was last initialised with
+    private static class Engine {
+        private Signature signature;
+        private Key key;
+
+        private Engine(SignatureScheme scheme) {
+            try {
+                signature = Signature.getInstance(scheme.getSignatureAlgorithm());
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    public static byte[] sign(byte[] data, PrivateKey key, SignatureScheme scheme) throws GeneralSecurityException {
+        Engine e = signers.get().computeIfAbsent(scheme, Engine::new);
+        if (e.key != key) {
+            e.signature.initSign(key);
+            e.key = key;
+        }
+        e.signature.update(data);
+        // sign() resets the engine, ready for the next one with the same key
+        return e.signature.sign();
+    }
+
+    public static boolean verify(byte[] data, PublicKey key, byte[] sig, SignatureScheme scheme) throws GeneralSecurityException {
+        Engine e = verifiers.get().computeIfAbsent(scheme, Engine::new);
+        if (e.key != key) {
+            e.signature.initVerify(key);
+            e.key = key;
+        }
+        try {
+            e.signature.update(data);
+            // verify() resets the engine too, whether the signature was good or not
+            return e.signature.verify(sig);
+        } catch (SignatureException ex) {
+            // a malformed signature can leave the engine half way through, so start clean next time
+            e.key = null;
+            throw ex;
+        }
+    }
+}
+
+// difficulty target- a block is solved when its hash has at least <difficulty> leading zero bits
+// i.e. the hash, as a 256 bit number, is below 2^(256 - difficulty)
+// retargeted every RETARGET_INTERVAL blocks so blocks keep coming about every BLOCK_INTERVAL ms
+class Difficulty {
+    // starting difficulty, -Dblockchain.difficulty=N to override
+    public static final int INITIAL_DIFFICULTY = Integer.getInteger("blockchain.difficulty", 20);
+    // number of blocks between retargets, -Dblockchain.retarget=N to override
+    public static final int RETARGET_INTERVAL = Integer.getInteger("blockchain.retarget", 10);
+    // time we want between blocks in ms, -Dblockchain.blockInterval=N to override
+    public static final long BLOCK_INTERVAL = Long.getLong("blockchain.blockInterval", 2000L);
+    public static final int MIN_DIFFICULTY = 1;
+    public static final int MAX_DIFFICULTY = 255;
+    private static final int MAX_ADJUST = 2; // most bits we move in one retarget (4x either way)
+
+    private Difficulty() {
+    }
+
+    // check the raw hash bytes have enough leading zero bits
+    public static boolean meetsTarget(byte[] hash, int difficulty) {
+        int fullBytes = difficulty >>> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            if (hash[i] != 0) {
+                return false;
+            }
+        }
+        int remainingBits = difficulty & 7;
+        return remainingBits == 0 || ((hash[fullBytes] & 0xFF) >>> (8 - remainingBits)) == 0;
+    }
+
+    // 256 bit threshold for a difficulty, hashes must be below this
+    public static BigInteger getTarget(int difficulty) {
+        return BigInteger.ONE.shiftLeft(256 - difficulty);
+    }
+
+    // difficulty for the next block to go on top of this chain
+    public static int next(List<BlockchainBlock> chain) {
+        int size = chain.size();
+        int next = required(chain, size);
+        Integer current = size == 0 ? null : chain.get(size - 1).getDifficulty();
+        if (current != null && next != current) {
+            System.out.println("Retarget: difficulty " + current + " -> " + next);
+        }
+        return next;
+    }
+
+    // difficulty the block at this height has to have, retargeted from the blocks before it
+    // a block declaring anything else is turned away, so no one can make their own blocks easier
+    public static int required(List<BlockchainBlock> chain, int size) {
+        return required(chain, size, size == 0 ? null : chain.get(size - 1));
+    }
+
+    // same, when the caller already has the block before it (last, null for the first block)
+    // so it's only read from the chain again when retargeting
+    public static int required(List<BlockchainBlock> chain, int size, BlockchainBlock last) {
+        if (size == 0) {
+            return INITIAL_DIFFICULTY;
+        }
+        int current = last.getDifficulty() == null ? INITIAL_DIFFICULTY : last.getDifficulty();
+        // only retarget every RETARGET_INTERVAL blocks
+        if (RETARGET_INTERVAL < 2 || size < RETARGET_INTERVAL || size % RETARGET_INTERVAL != 0) {
+            return current;
+        }
+        BlockchainBlock first = chain.get(size - RETARGET_INTERVAL);
+        if (first.getSealTime() == null || last.getSealTime() == null) {
+            return current;
+        }
+        // average time between the blocks in this window
+        long actual = Math.max(1, (last.getSealTime() - first.getSealTime()) / (RETARGET_INTERVAL - 1));
+        // each bit doubles the work, so move by log2 of how far off we are
+        int adjust = (int) Math.round(Math.log((double) BLOCK_INTERVAL / actual) / Math.log(2));
+        adjust = Math.max(-MAX_ADJUST, Math.min(MAX_ADJUST, adjust));
+        return Math.max(MIN_DIFFICULTY, Math.min(MAX_DIFFICULTY, current + adjust));
+    }
+}
+
+// canonical fixed layout binary header for a block- this is what gets hashed
+// version(4) | previous block hash(32) | body digest(32) | create time(8) | seal time(8) | difficulty(4) | nonce(8)
+// the body digest covers all the record data, so the header is always the same size
+class BlockHeader {
+    public static final int VERSION = 1;
+    public static final int HASH_LENGTH = 32; // SHA-256
+    public static final int NONCE_OFFSET = 4 + HASH_LENGTH + HASH_LENGTH + 8 + 8 + 4;
+    public static final int LENGTH = NONCE_OFFSET + 8;
+    private byte[] bytes; // the header bytes
+
+    public BlockHeader(BlockchainBlock b) {
+        bytes = new byte[LENGTH];
+        putInt(bytes, 0, VERSION);
+        System.arraycopy(previousHashBytes(b.getPreviousBlockHash()), 0, bytes, 4, HASH_LENGTH);
+        System.arraycopy(bodyDigest(b), 0, bytes, 4 + HASH_LENGTH, HASH_LENGTH);
+        putLong(bytes, 4 + 2 * HASH_LENGTH, parseLong(b.getCreateTime()));
+        putLong(bytes, 4 + 2 * HASH_LENGTH + 8, b.getSealTime() == null ? 0 : b.getSealTime());
+        putInt(bytes, 4 + 2 * HASH_LENGTH + 16, b.getDifficulty() == null ? 0 : b.getDifficulty());
+        putLong(bytes, NONCE_OFFSET, b.getNonce() == null ? 0 : b.getNonce());
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    // digest state after everything up to the nonce has been hashed
+    // clone this and add the nonce to finish a hash
+    public MessageDigest getPrefixState() throws CloneNotSupportedException {
+        MessageDigest md = CalcHashHelper.sha256();
+        md.update(bytes, 0, NONCE_OFFSET);
+        return (MessageDigest) md.clone();
+    }
+
+    // big endian helpers
+    public static void putInt(byte[] buf, int off, int v) {
+        for (int i = 3; i >= 0; i--) {
+            buf[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    public static void putLong(byte[] buf, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            buf[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    // previous hash is hex- genesis block uses "0", which becomes all zeros
+    private static byte[] previousHashBytes(String prev) {
+        if (prev != null && prev.length() == 2 * HASH_LENGTH) {
+            try {
+                return DatatypeConverter.parseHexBinary(prev);
+            } catch (IllegalArgumentException ex) {
+                // not hex, fall through and hash it
+            }
+        }
+        if (prev == null || prev.equals("0")) {
+            return new byte[HASH_LENGTH];
+        }
+        return CalcHashHelper.sha256().digest(prev.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    // what the header commits to- for a block with a batch of records, its id and the merkle root
+    // over them, otherwise the block's own record data
+    private static byte[] bodyDigest(BlockchainBlock b) {
+        if (b.getMerkleRoot() == null) {
+            return recordDigest(b);
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeBoolean(b.getBlockId() != null);
+            if (b.getBlockId() != null) {
+                out.writeUTF(b.getBlockId());
+            }
+            out.write(DatatypeConverter.parseHexBinary(b.getMerkleRoot()));
+            out.flush();
+            return CalcHashHelper.sha256().digest(bos.toByteArray());
+        } catch (IOException ex) {
+            // can't happen writing to a byte array
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // SHA-256 over the record data, each field written with a presence flag
+    public static byte[] recordDigest(BlockchainBlock b) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            String[] fields = { b.getBlockId(), b.getCreatingProcessId(), b.getSignedHash(),
+                b.getFirstName(), b.getLastName(), b.getDob(), b.getSsNum(),
+                b.getDiagnosis(), b.getTreatment(), b.getPrescription() };
+            for (String f : fields) {
+                out.writeBoolean(f != null);
+                if (f != null) {
+                    out.writeUTF(f);
+                }
+            }
+            // only written when there is one, so records from before schemes hash the same
+            if (b.getSignatureScheme() != null) {
+                out.writeUTF(b.getSignatureScheme());
+            }
+            out.flush();
+            return CalcHashHelper.sha256().digest(bos.toByteArray());
+        } catch (IOException ex) {
+            // can't happen writing to a byte array
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
+
+// merkle tree over the records in a block
+// leaves are SHA-256(0x00 | record digest), inner nodes SHA-256(0x01 | left | right)
+// an odd node at the end of a level moves up unchanged, rather than being paired with itself
+class Merkle {
+    private Merkle() {
+    }
+
+    public static byte[] leaf(BlockchainBlock record) {
+        MessageDigest md = CalcHashHelper.sha256();
+        md.update((byte) 0);
+        return md.digest(BlockHeader.recordDigest(record));
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = CalcHashHelper.sha256();
+        md.update((byte) 1);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    // root over these records, as hex
+    public static String root(List<BlockchainBlock> records) {
+        List<byte[]> level = new ArrayList<>(records.size());
+        for (BlockchainBlock r : records) {
+            level.add(leaf(r));
+        }
+        if (level.isEmpty()) {
+            return DatatypeConverter.printHexBinary(new byte[BlockHeader.HASH_LENGTH]);
+        }
+        while (level.size() > 1) {
+            level = up(level);
+        }
+        return DatatypeConverter.printHexBinary(level.get(0));
+    }
+
+    private static List<byte[]> up(List<byte[]> level) {
+        List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            next.add(i + 1 < level.size() ? node(level.get(i), level.get(i + 1)) : level.get(i));
+        }
+        return next;
+    }
+
+    // siblings on the path from record index up to the root, bottom first
+    // with the record, its index and the number of records, this is enough to get back to the root
+    public static List<byte[]> proof(List<BlockchainBlock> records, int index) {
+        List<byte[]> level = new ArrayList<>(records.size());
+        for (BlockchainBlock r : records) {
+            level.add(leaf(r));
+        }
+        List<byte[]> proof = new ArrayList<>();
+        while (level.size() > 1) {
+            int sibling = index ^ 1;
+            if (sibling < level.size()) {
+                proof.add(level.get(sibling));
+            }
+            level = up(level);
+            index >>= 1;
+        }
+        return proof;
+    }
+
+    // is this record at index of a block of count records with this root
+    public static boolean verify(BlockchainBlock record, int index, int count, List<byte[]> proof, String root) {
+        byte[] hash = leaf(record);
+        int next = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < size) {
+                if (next == proof.size()) {
+                    return false;
+                }
+                hash = (index & 1) == 0 ? node(hash, proof.get(next++)) : node(proof.get(next++), hash);
+            }
+            index >>= 1;
+        }
+        return next == proof.size() && DatatypeConverter.printHexBinary(hash).equalsIgnoreCase(root);
+    }
+}
+
+class Keys {
+    // singleton
+    // provide public key to all clients
+    // calculate and return new private key to BlockchainNode
+    private static Keys instance = null;
+
+    // private constructor (for singleton)
+    private Keys() {
+    }
+
+    // getInstance method, for singleton
+    public static synchronized Keys getInstance() {
+        if (instance == null) {
+            instance = new Keys();
+        }
+        return instance;
+    }
+
+    public KeyPair getKeys(BlockchainNode bn) {
+        // calculate public and private key here
+        // add public key to publicKeyList
+        // return private key to BlockchainNode
+        byte[] pub = null;
+        byte[] priv = null;
+        KeyPair keyPair = null;
+        try {
+            // generate the key pair for the scheme this node signs with
+            keyPair = SignatureScheme.CONFIGURED.generateKeyPair();
+            System.out.println("Using signature scheme " + SignatureScheme.CONFIGURED);
+        } catch (Exception ex) {
+            System.out.println("getPrivateKey exception: " + ex);
+            ex.printStackTrace();
+        }
+        // set BlockchainNode class public and private keys
+        return keyPair;
+    }
+}
+
+// KeyHash class- this is the class used to marshall public keys to all processes
+@XmlRootElement
+class KeyHash {
+    private int pid; // pid of process
+    private byte[] publicKey; // public key of process
+    private String scheme; // signature scheme the key is for, null for the original rsa-1024
+    // where the node's servers are, null host for a key sent without them, see Membership
+    private String host;
+    private int keyPort;
+    private int unverifiedPort;
+    private int verifiedPort;
+    private boolean leaving; // the node is leaving the cluster
+
+    public KeyHash() {
+    }
+
+    // get methods
+    public int getPid() {
+        return pid;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    // set methods
+    @XmlElement
+    public void setPid(int pid) {
+        this.pid = pid;
+    }
+
+    @XmlElement
+    public void setPublicKey(byte[] publicKey) {
+        this.publicKey = publicKey;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    @XmlElement
+    public void setScheme(String scheme) {
+        this.scheme = scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @XmlElement
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getKeyPort() {
+        return keyPort;
+    }
+
+    @XmlElement
+    public void setKeyPort(int keyPort) {
+        this.keyPort = keyPort;
+    }
+
+    public int getUnverifiedPort() {
+        return unverifiedPort;
+    }
+
+    @XmlElement
+    public void setUnverifiedPort(int unverifiedPort) {
+        this.unverifiedPort = unverifiedPort;
+    }
+
+    public int getVerifiedPort() {
+        return verifiedPort;
+    }
+
+    @XmlElement
+    public void setVerifiedPort(int verifiedPort) {
+        this.verifiedPort = verifiedPort;
+    }
+
+    public boolean isLeaving() {
+        return leaving;
+    }
+
+    @XmlElement
+    public void setLeaving(boolean leaving) {
+        this.leaving = leaving;
+    }
+
+    @Override
+    public String toString() {
+        return "pid: " + pid + "\nscheme: " + scheme + (host == null ? "" : "\nhost: " + host + ":" + keyPort
+            + (leaving ? " (leaving)" : "")) + "\npublic key: " + Base64.getEncoder().encodeToString(publicKey);
+    }
+}
+
+// what one node has, sent to a random member when gossiping so it can send back what we're missing, see Gossip
+// binary wire format only
+@XmlRootElement
+class Digest {
+    private int sender; // pid of the node asking
+    private int height; // height of its chain, -1 if empty
+    private List<String> records = new ArrayList<>(); // blockIds in its unverified pool
+
+    public Digest() {
+    }
+
+    public int getSender() {
+        return sender;
+    }
+
+    @XmlElement
+    public void setSender(int sender) {
+        this.sender = sender;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @XmlElement
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public List<String> getRecords() {
+        return records;
+    }
+
+    @XmlElement(name = "record")
+    public void setRecords(List<String> records) {
+        this.records = records;
+    }
+
+    public String toString() {
+        return "digest from P" + sender + ": height " + height + ", " + records.size() + " records";
     }
 }
 
-// KeyHash class- this is the class used to marshall public keys to all processes
-@XmlRootElement
-class KeyHash {
-    private int pid; // pid of process
-    private byte[] publicKey; // public key of process
+// runtime metrics for this node- counters, gauges and latency histograms
+// served over JMX as Blockchain:type=Metrics, and as prometheus style text on http://localhost:<metrics port>/metrics
+// recording is a LongAdder increment, cheap enough for the hot paths; gauges are only read when someone looks
+class Metrics {
+    // singleton
+    private static Metrics instance;
+    // every series, by name then labels, so series of the same metric are listed together
+    private ConcurrentSkipListMap<String, Metric> metrics;
+    private HttpServer http; // text endpoint, null until started
+
+    // private constructor, since this is a singleton
+    private Metrics() {
+        metrics = new ConcurrentSkipListMap<>();
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    // a count that only goes up, labels are name, value pairs
+    // asking again for the same name and labels returns the same counter
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(new Counter(name, help, labels));
+    }
+
+    // latency histogram, see Histogram for the buckets
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(new Histogram(name, help, labels));
+    }
+
+    // a value read when metrics are scraped, replaces any gauge already registered with these labels
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        Gauge g = new Gauge(name, help, labels, value);
+        metrics.put(g.key, g);
+    }
+
+    private Metric register(Metric m) {
+        Metric existing = metrics.putIfAbsent(m.key, m);
+        return existing == null ? m : existing;
+    }
+
+    // start serving metrics, over JMX and on this port (on localhost only), port 0 for JMX only
+    public synchronized void start(int port) {
+        try {
+            ObjectName name = new ObjectName("Blockchain:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException ex) {
+            System.out.println("Can't register metrics MBean: " + ex);
+        }
+        if (port <= 0 || http != null) {
+            return;
+        }
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            System.out.println("Metrics on http://localhost:" + port + "/metrics");
+        } catch (IOException ex) {
+            System.out.println("Can't serve metrics on port " + port + ": " + ex);
+            http = null;
+        }
+    }
+
+    // every metric in the prometheus text format
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        String family = null;
+        for (Metric m : metrics.values()) {
+            if (!m.name.equals(family)) {
+                family = m.name;
+                sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+                sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            }
+            m.write(sb);
+        }
+        return sb.toString();
+    }
+
+    // every series as a single number, for JMX
+    public Map<String, Double> sample() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (Metric m : metrics.values()) {
+            m.sample(values);
+        }
+        return values;
+    }
+
+    private static String number(double v) {
+        if (v == Math.rint(v) && !Double.isInfinite(v)) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+
+    // one series- a metric name and its labels
+    abstract static class Metric {
+        protected final String name; // metric name
+        protected final String help; // what it means
+        protected final String labels; // {a="1",b="2"}, or "" for none
+        protected final String key; // name then labels, space sorts before anything in a name
+
+        protected Metric(String name, String help, String[] labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels(labels, null);
+            this.key = name + " " + this.labels;
+        }
+
+        // labels in the text format, with an extra label (for histogram buckets) if le isn't null
+        protected static String labels(String[] pairs, String le) {
+            if (pairs.length == 0 && le == null) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i + 1 < pairs.length; i += 2) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(pairs[i]).append("=\"").append(pairs[i + 1]).append('"');
+            }
+            if (le != null) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("le=\"").append(le).append('"');
+            }
+            return sb.append('}').toString();
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder sb);
+
+        abstract void sample(Map<String, Double> values);
+    }
+
+    static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help, String[] labels) {
+            super(name, help, labels);
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void write(StringBuilder sb) {
+            sb.append(name).append(labels).append(' ').append(get()).append('\n');
+        }
+
+        void sample(Map<String, Double> values) {
+            values.put(name + labels, (double) get());
+        }
+    }
+
+    static class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        private Gauge(String name, String help, String[] labels, DoubleSupplier value) {
+            super(name, help, labels);
+            this.value = value;
+        }
+
+        String type() {
+            return "gauge";
+        }
+
+        void write(StringBuilder sb) {
+            sb.append(name).append(labels).append(' ').append(number(value.getAsDouble())).append('\n');
+        }
+
+        void sample(Map<String, Double> values) {
+            values.put(name + labels, value.getAsDouble());
+        }
+    }
+
+    // latencies in nanoseconds, counted in power of two buckets from 1us up to about 69s
+    // reported in seconds, as prometheus expects
+    static class Histogram extends Metric {
+        private static final int MIN_SHIFT = 10; // first bucket is everything up to 2^10ns
+        private static final int BUCKETS = 27; // last bucket is up to 2^36ns, then +Inf
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+        private final String[] pairs; // labels, kept to add le to
+
+        private Histogram(String name, String help, String[] labels) {
+            super(name, help, labels);
+            pairs = labels;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            // smallest bucket whose upper bound, 2^(MIN_SHIFT + i), is at least nanos
+            int i = 64 - Long.numberOfLeadingZeros(Math.max(nanos - 1, 0)) - MIN_SHIFT;
+            counts[Math.max(0, Math.min(i, BUCKETS))].increment();
+            sum.add(nanos);
+        }
+
+        // time since start, from System.nanoTime()
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long getCount() {
+            long n = 0;
+            for (LongAdder c : counts) {
+                n += c.sum();
+            }
+            return n;
+        }
+
+        // upper bound of the bucket the q'th quantile falls in, in nanoseconds
+        public double quantile(double q) {
+            long[] snapshot = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= q * total) {
+                    return 1L << (MIN_SHIFT + i);
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        String type() {
+            return "histogram";
+        }
 
-    public KeyHash() {
-    }
+        void write(StringBuilder sb) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i].sum();
+                sb.append(name).append("_bucket").append(labels(pairs, Double.toString((1L << (MIN_SHIFT + i)) / 1e9)))
+                    .append(' ').append(cumulative).append('\n');
+            }
+            cumulative += counts[BUCKETS].sum();
+            sb.append(name).append("_bucket").append(labels(pairs, "+Inf")).append(' ').append(cumulative).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(sum.sum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
 
-    // get methods
-    public int getPid() {
-        return pid;
+        void sample(Map<String, Double> values) {
+            long count = getCount();
+            values.put(name + "_count" + labels, (double) count);
+            values.put(name + "_mean" + labels, count == 0 ? 0 : sum.sum() / 1e9 / count);
+            values.put(name + "_p50" + labels, quantile(0.5) / 1e9);
+            values.put(name + "_p99" + labels, quantile(0.99) / 1e9);
+        }
     }
 
-    public byte[] getPublicKey() {
-        return publicKey;
-    }
+    // every series as a read only attribute, names as in the text format
+    private class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Double value = sample().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
 
-    // set methods
-    @XmlElement
-    public void setPid(int pid) {
-        this.pid = pid;
-    }
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> values = sample();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
 
-    @XmlElement
-    public void setPublicKey(byte[] publicKey) {
-        this.publicKey = publicKey;
-    }
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read only: " + attribute.getName());
+        }
 
-    @Override
-    public String toString() {
-        return "pid: " + pid + "\npublic key: " + Base64.getEncoder().encodeToString(publicKey);
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        // metrics are added as the node starts up, so this is built fresh each time
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Metric m : metrics.values()) {
+                Map<String, Double> values = new LinkedHashMap<>();
+                m.sample(values);
+                for (String attribute : values.keySet()) {
+                    attributes.add(new MBeanAttributeInfo(attribute, "java.lang.Double", m.help,
+                        true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Blockchain node metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
     }
 }
 
@@ -1141,12 +5478,16 @@ class Ports {
     private int publicKeyServerBasePort; // base port for public key distribution
     private int unverifiedBlockBasePort; // base port for unverified block distribution
     private int verifiedBlockBasePort; // base port for verified block distribution
+    private int metricsBasePort; // base port for the metrics http endpoint
+    private int backlog; // accept queue length for our servers
 
     // private constructor, since this is a singleton
     private Ports() {
         publicKeyServerBasePort = 4701; // this is our base public key port
         unverifiedBlockBasePort = 4820; // this is our base unverified block port
         verifiedBlockBasePort = 4930; // this is out base verified block port
+        metricsBasePort = 5040; // this is our base metrics port
+        backlog = Integer.getInteger("blockchain.backlog", 128); // -Dblockchain.backlog=N to override
     }
 
     // getInstance method, since this is singleton
@@ -1186,6 +5527,237 @@ class Ports {
     public int getVerifiedBlockBasePort() {
         return verifiedBlockBasePort;
     }
+
+    // return metrics port for given pid
+    // (base port + processId), -Dblockchain.metricsPort=N to override, 0 for JMX only
+    public int getMetricsPort(int pid) {
+        return Integer.getInteger("blockchain.metricsPort", metricsBasePort + pid);
+    }
+
+    // accept queue length for server sockets
+    public int getBacklog() {
+        return backlog;
+    }
+}
+
+// one node in the cluster- its id (pid) and where its servers listen
+class Member {
+    private final int id;
+    private final String host;
+    private final int keyPort; // public keys and membership announcements
+    private final int unverifiedPort; // new unverified blocks
+    private final int verifiedPort; // solved blocks
+
+    public Member(int id, String host, int keyPort, int unverifiedPort, int verifiedPort) {
+        this.id = id;
+        this.host = host;
+        this.keyPort = keyPort;
+        this.unverifiedPort = unverifiedPort;
+        this.verifiedPort = verifiedPort;
+    }
+
+    // node listening on port (keys), port + 1 (unverified blocks) and port + 2 (verified blocks)
+    public static Member at(int id, String host, int port) {
+        return new Member(id, host, port, port + 1, port + 2);
+    }
+
+    // node on localhost at the original base port + pid ports
+    public static Member local(int id) {
+        Ports ports = Ports.getInstance();
+        return new Member(id, "localhost", ports.getPublicKeyServerPort(id), ports.getUnverifiedBlockPort(id),
+            ports.getVerifiedBlockPort(id));
+    }
+
+    // the node that sent this key, or null if it didn't say where it is
+    public static Member of(KeyHash k) {
+        return k.getHost() == null ? null
+            : new Member(k.getPid(), k.getHost(), k.getKeyPort(), k.getUnverifiedPort(), k.getVerifiedPort());
+    }
+
+    // fill in our endpoint on a key we are about to send
+    public KeyHash describe(KeyHash k, boolean leaving) {
+        k.setHost(host);
+        k.setKeyPort(keyPort);
+        k.setUnverifiedPort(unverifiedPort);
+        k.setVerifiedPort(verifiedPort);
+        k.setLeaving(leaving);
+        return k;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getKeyPort() {
+        return keyPort;
+    }
+
+    public int getUnverifiedPort() {
+        return unverifiedPort;
+    }
+
+    public int getVerifiedPort() {
+        return verifiedPort;
+    }
+
+    public boolean sameEndpoint(Member m) {
+        return host.equals(m.host) && keyPort == m.keyPort && unverifiedPort == m.unverifiedPort
+            && verifiedPort == m.verifiedPort;
+    }
+
+    public String toString() {
+        return "P" + id + "@" + host + ":" + keyPort;
+    }
+}
+
+// who is in the cluster- shared by the multicasts, which send to every member, and the servers, which listen
+// on our own member's ports
+// the starting members come from, in order of preference:
+//   -Dblockchain.members=<file>, a line "id host:port" per node (port for keys, port+1 and port+2 for blocks)
+//   -Dblockchain.seeds=host:port,... just ourselves, and we announce ourselves to the seeds (their key ports)
+//   -Dblockchain.nodes=N (3 by default) nodes 0..N-1 on localhost, at the base port + pid ports
+// our own ports are our line in the members file, or -Dblockchain.host and -Dblockchain.port, or base port + pid
+// after that nodes join and leave by announcing themselves with their key, see PublicKeyStore.addKey
+class Membership {
+    // singleton
+    private static Membership instance;
+    private ConcurrentHashMap<Integer, Member> members; // id -> member, ourselves included
+    private Set<Integer> announced; // members we've heard from directly, with their key
+    private Member self; // this node
+    private List<InetSocketAddress> seeds; // key ports to announce ourselves to on startup
+
+    // private constructor, since this is a singleton
+    private Membership() {
+        members = new ConcurrentHashMap<>();
+        announced = ConcurrentHashMap.newKeySet();
+        seeds = new ArrayList<>();
+    }
+
+    // getInstance method, since this is singleton
+    public static synchronized Membership getInstance() {
+        if (instance == null) {
+            instance = new Membership();
+        }
+        return instance;
+    }
+
+    // set up the starting members for node pid, once on startup
+    public synchronized void load(int pid) {
+        String file = System.getProperty("blockchain.members");
+        String seedList = System.getProperty("blockchain.seeds");
+        if (file != null) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("\\s+");
+                    if (fields.length != 2) {
+                        throw new IllegalArgumentException("bad line in " + file + ": " + line);
+                    }
+                    InetSocketAddress address = parseAddress(fields[1]);
+                    int id = Integer.parseInt(fields[0]);
+                    members.put(id, Member.at(id, address.getHostString(), address.getPort()));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("can't read members file " + file, ex);
+            }
+        } else if (seedList == null) {
+            int nodes = Integer.getInteger("blockchain.nodes", 3);
+            for (int id = 0; id < nodes; id++) {
+                members.put(id, Member.local(id));
+            }
+        }
+        if (seedList != null) {
+            for (String seed : seedList.split(",")) {
+                if (!seed.trim().isEmpty()) {
+                    seeds.add(parseAddress(seed.trim()));
+                }
+            }
+        }
+        self = members.get(pid);
+        if (self == null || System.getProperty("blockchain.port") != null) {
+            self = System.getProperty("blockchain.port") == null ? Member.local(pid)
+                : Member.at(pid, System.getProperty("blockchain.host", "localhost"), Integer.getInteger("blockchain.port"));
+        }
+        members.put(pid, self);
+        announced.add(pid);
+        System.out.println("Members: " + members.values() + (seeds.isEmpty() ? "" : ", seeds: " + seeds));
+    }
+
+    private static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("expected host:port, got " + hostPort);
+        }
+        return InetSocketAddress.createUnresolved(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    public Member getSelf() {
+        return self;
+    }
+
+    // every member, ourselves included. a live view, members may come and go while you look
+    public Collection<Member> getMembers() {
+        return members.values();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    // member with this id, or null if we don't know of it
+    public Member getMember(int id) {
+        return members.get(id);
+    }
+
+    public List<InetSocketAddress> getSeeds() {
+        return seeds;
+    }
+
+    // a member announced itself, returns true if this is news- a node we hadn't heard from,
+    // or one that has moved. the caller tells it about us, and everyone else about it
+    public synchronized boolean join(Member m) {
+        Member old = members.put(m.getId(), m);
+        boolean news = announced.add(m.getId()) || old == null || !old.sameEndpoint(m);
+        if (news) {
+            System.out.println("Member joined: " + m + " (" + members.size() + " members)");
+            if (old != null && !old.sameEndpoint(m)) {
+                PeerLinkManager.getInstance().removeLinks(old);
+            }
+        }
+        return news;
+    }
+
+    // a member is leaving, stop sending to it. its key is kept, to verify the blocks it made
+    public synchronized void leave(Member m) {
+        Member old = members.get(m.getId());
+        if (old != null && old.sameEndpoint(m) && m.getId() != self.getId()) {
+            members.remove(m.getId());
+            announced.remove(m.getId());
+            PeerLinkManager.getInstance().removeLinks(old);
+            System.out.println("Member left: " + m + " (" + members.size() + " members)");
+        }
+    }
+
+    // which channel a port is for, used to label metrics
+    public String getChannel(int port) {
+        for (Member m : members.values()) {
+            if (port == m.getVerifiedPort()) {
+                return "verified";
+            } else if (port == m.getUnverifiedPort()) {
+                return "unverified";
+            }
+        }
+        // key ports, and seeds, which we only know the key port of
+        return "key";
+    }
 }
 
 // this class is for marshalling blockchain blocks
@@ -1195,7 +5767,10 @@ class BlockchainBlock implements Comparable<BlockchainBlock> {
     private String signedHash;
     private String createTime;
     private String previousBlockHash;
-    private String randomString;
+    private Long nonce;
+    private Integer difficulty;
+    private Long sealTime;
+    private String blockHash; // hash of this block's header, set once the block is sealed
     private String blockId;
     private String solvedProcessId;
     private String creatingProcessId;
@@ -1206,16 +5781,85 @@ class BlockchainBlock implements Comparable<BlockchainBlock> {
     private String diagnosis;
     private String treatment;
     private String prescription;
-
-    // compareTo method- compares blockId and returns value 0 if equivalent, 1 otherwise
+    // a sealed block carries a batch of records (each one an unverified block, as its creator signed it)
+    // and the merkle root over them, which is what the header commits to
+    // both are null for a single record block
+    private String merkleRoot;
+    private List<BlockchainBlock> records;
+    private String signatureScheme; // scheme the creator signed with, null for the original rsa-1024
+
+    // compareTo method- orders blocks oldest first by createTime, then by blockId
+    // returns 0 only for the same blockId with the same createTime
     public int compareTo(BlockchainBlock other) {
-        if (this.blockId.equals(other.blockId) == true) {
-            return 0;
-        } else {
-            return 1;
+        int c = Long.compare(createTimeMillis(), other.createTimeMillis());
+        if (c != 0) {
+            return c;
+        }
+        return String.valueOf(blockId).compareTo(String.valueOf(other.blockId));
+    }
+
+    // createTime as millis, blocks without one sort last
+    private long createTimeMillis() {
+        try {
+            return Long.parseLong(createTime);
+        } catch (NumberFormatException ex) {
+            return Long.MAX_VALUE;
         }
     }
 
+    // returns a copy of this block, so workers can change it without stepping on each other
+    public BlockchainBlock copy() {
+        BlockchainBlock b = new BlockchainBlock();
+        b.signedHash = signedHash;
+        b.createTime = createTime;
+        b.previousBlockHash = previousBlockHash;
+        b.nonce = nonce;
+        b.difficulty = difficulty;
+        b.sealTime = sealTime;
+        b.blockHash = blockHash;
+        b.blockId = blockId;
+        b.solvedProcessId = solvedProcessId;
+        b.creatingProcessId = creatingProcessId;
+        b.firstName = firstName;
+        b.lastName = lastName;
+        b.dob = dob;
+        b.ssNum = ssNum;
+        b.diagnosis = diagnosis;
+        b.treatment = treatment;
+        b.prescription = prescription;
+        b.merkleRoot = merkleRoot;
+        b.records = records == null ? null : new ArrayList<>(records);
+        b.signatureScheme = signatureScheme;
+        return b;
+    }
+
+    // ids of the records in this block- the records batched into it, or the block itself if it has none
+    public List<String> getRecordIds() {
+        if (records == null) {
+            return Collections.singletonList(blockId);
+        }
+        List<String> ids = new ArrayList<>(records.size());
+        for (BlockchainBlock r : records) {
+            ids.add(r.getBlockId());
+        }
+        return ids;
+    }
+
+    // returns a copy of this block as its creator signed it- before it was solved, with signedHash "null"
+    public BlockchainBlock unsignedCopy() {
+        BlockchainBlock b = copy();
+        b.setSignedHash(null);
+        b.previousBlockHash = null;
+        b.nonce = null;
+        b.difficulty = null;
+        b.sealTime = null;
+        b.blockHash = null;
+        b.solvedProcessId = null;
+        b.merkleRoot = null;
+        b.records = null;
+        return b;
+    }
+
     // getters and setters are below
     public String getSignedHash() {
         return signedHash;
@@ -1244,13 +5888,67 @@ class BlockchainBlock implements Comparable<BlockchainBlock> {
         this.previousBlockHash = prevBlockHash;
     }
 
-    public String getRandomString() {
-        return randomString;
+    public Long getNonce() {
+        return nonce;
+    }
+
+    @XmlElement
+    public void setNonce(Long nonce) {
+        this.nonce = nonce;
+    }
+
+    public Integer getDifficulty() {
+        return difficulty;
+    }
+
+    @XmlElement
+    public void setDifficulty(Integer difficulty) {
+        this.difficulty = difficulty;
+    }
+
+    public Long getSealTime() {
+        return sealTime;
+    }
+
+    @XmlElement
+    public void setSealTime(Long sealTime) {
+        this.sealTime = sealTime;
+    }
+
+    public String getBlockHash() {
+        return blockHash;
+    }
+
+    @XmlElement
+    public void setBlockHash(String blockHash) {
+        this.blockHash = blockHash;
+    }
+
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    @XmlElement
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
+    public List<BlockchainBlock> getRecords() {
+        return records;
+    }
+
+    public String getSignatureScheme() {
+        return signatureScheme;
     }
 
     @XmlElement
-    public void setRandomString(String randomString) {
-        this.randomString = randomString;
+    public void setSignatureScheme(String signatureScheme) {
+        this.signatureScheme = signatureScheme;
+    }
+
+    @XmlElement(name = "Record")
+    public void setRecords(List<BlockchainBlock> records) {
+        this.records = records;
     }
 
     public String getBlockId() {
@@ -1345,11 +6043,356 @@ class BlockchainBlock implements Comparable<BlockchainBlock> {
 
     @Override
     public String toString() {
-        return "\nBlockchainBlock [createTime=" + String.valueOf(createTime) + "\nPreviousBlockHash=" + previousBlockHash + ",\nRandomString=" + randomString + ",\nblockId="
+        return "\nBlockchainBlock [createTime=" + String.valueOf(createTime) + "\nPreviousBlockHash=" + previousBlockHash + ",\nNonce=" + nonce + ",\nDifficulty=" + difficulty + ",\nSealTime=" + sealTime + ",\nBlockHash=" + blockHash + ",\nblockId="
                 + blockId + ",\nsolvedProcesId=" + solvedProcessId + ",\ncreatingProcessId="
                 + creatingProcessId + ",\nfirstName=" + firstName + ",\nlastName=" + lastName
                 + ",\ndob=" + dob + ",\nssNum=" + ssNum + ",\ndiagnosis=" + diagnosis + ",\ntreatment=" + treatment
-                + ",\nprescription=" + prescription + "]\n";
+                + ",\nprescription=" + prescription + (signatureScheme == null ? "" : ",\nsignatureScheme=" + signatureScheme)
+                + (records == null ? "" : ",\nMerkleRoot=" + merkleRoot + ",\nrecords(" + records.size() + ")=" + records)
+                + "]\n";
+    }
+
+}
+
+// java XmlBenchmark [iterations]
+// prints marshal/unmarshal ops/sec for a BlockchainBlock, building a new
+// JAXBContext per op (the old way) vs the shared contexts in XmlSerializer
+class XmlBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = ((args.length < 1) ? 2000 : Integer.parseInt(args[0]));
+        BlockchainBlock block = sampleBlock();
+        String xml = XmlSerializer.getInstance().marshal(block);
+
+        // warm up both paths first, so we're not timing class loading
+        run(block, xml, iterations / 10 + 1);
+
+        System.out.println("XmlBenchmark, " + iterations + " iterations");
+        run(block, xml, iterations);
+    }
+
+    private static void run(BlockchainBlock block, String xml, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // old way- new context and marshaller every time
+            JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
+            Marshaller marshaller = jaxbContext.createMarshaller();
+            StringWriter sw = new StringWriter();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(block, sw);
+        }
+        report("marshal (new context)", iterations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            XmlSerializer.getInstance().marshal(block);
+        }
+        report("marshal (shared context)", iterations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // old way- new context and unmarshaller every time
+            JAXBContext jaxbContext = JAXBContext.newInstance(BlockchainBlock.class);
+            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            unmarshaller.unmarshal(new StringReader(xml));
+        }
+        report("unmarshal (new context)", iterations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            XmlSerializer.getInstance().unmarshal(xml, BlockchainBlock.class);
+        }
+        report("unmarshal (shared context)", iterations, System.nanoTime() - start);
+    }
+
+    // print ops/sec for a run
+    private static void report(String name, int iterations, long nanos) {
+        System.out.println(String.format("%-28s %12.1f ops/sec", name, iterations * 1e9 / nanos));
+    }
+
+    // block filled in like a real record from BlockInput0.txt
+    private static BlockchainBlock sampleBlock() {
+        BlockchainBlock block = new BlockchainBlock();
+        block.setBlockId("74c642db-22e2-48cb-a909-08f9ce9a2617");
+        block.setCreateTime(String.valueOf(System.currentTimeMillis()));
+        block.setCreatingProcessId("1");
+        block.setFirstName("John");
+        block.setLastName(" Smith");
+        block.setDob(" 1996.03.07");
+        block.setSsNum(" 123-45-6789");
+        block.setDiagnosis(" Chickenpox");
+        block.setTreatment(" BedRest");
+        block.setPrescription(" aspirin");
+        block.setPreviousBlockHash("0");
+        block.setNonce(42L);
+        block.setDifficulty(Difficulty.INITIAL_DIFFICULTY);
+        block.setSealTime(System.currentTimeMillis());
+        block.setSolvedProcessId("0");
+        return block;
+    }
+}
+
+// java -Dblockchain.fanout=4 GossipSimulation [messages] [nodes...]
+// runs clusters of simulated nodes (10, 25, 50 and 100 by default) in this one JVM,
+// on loopback ports from 7000, and sends messages from node 0 to all the others,
+// first by sending to every node (multicast) and then by gossip. prints the delivery
+// latency percentiles, how many nodes got each message, the sends it took, and how long
+// after the last message left the origin every node had every message, for each cluster size and mode
+// then gossips again with -Dsim.loss of the sends dropped (10% by default), once without repair
+// and once with each node sending a repair digest to a random peer every -Dsim.repairInterval ms
+class GossipSimulation {
+    private static final String HOST = "127.0.0.1";
+    private static final int BASE_PORT = Integer.getInteger("sim.port", 7000);
+    private static final long GAP_MS = 2; // between messages from the origin
+    private static final long TIMEOUT_MS = 10000; // longest we wait for a run to finish
+    private static final long LOSSY_WAIT_MS = 1000; // how long a lossy run without repair gets, it won't finish
+    private static final double LOSS = Double.parseDouble(System.getProperty("sim.loss", "0.1"));
+    private static final long REPAIR_MS = Long.getLong("sim.repairInterval", 100L);
+
+    // the run in progress, the listeners stay up between runs and hand their messages to it
+    private static volatile Run current;
+
+    // simulated node i, blocks go to its unverified port and digests to its key port
+    private static Member member(int i) {
+        return Member.at(i, HOST, BASE_PORT + 3 * i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = ((args.length < 1) ? 200 : Integer.parseInt(args[0]));
+        int[] sizes = {10, 25, 50, 100};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        int most = 0;
+        for (int n : sizes) {
+            most = Math.max(most, n);
+        }
+        // two listening ports per simulated node, all on the shared NioServer
+        for (int i = 0; i < most; i++) {
+            final int node = i;
+            NioServer.getInstance().listen(member(i).getUnverifiedPort(), 1024, BlockchainBlock.class, b -> {
+                Run run = current;
+                if (run != null) {
+                    run.receive(node, b);
+                }
+            });
+            NioServer.getInstance().listen(member(i).getKeyPort(), 1024, Digest.class, d -> {
+                Run run = current;
+                if (run != null) {
+                    run.repair(node, d);
+                }
+            });
+        }
+        System.out.println("GossipSimulation, " + messages + " messages, fanout " + Gossip.FANOUT);
+        System.out.println(String.format("%5s %-9s %8s %8s %8s %8s %9s %11s %12s %12s",
+            "nodes", "mode", "p50 ms", "p90 ms", "p99 ms", "max ms", "coverage", "origin/msg", "sends/msg", "converge ms"));
+        // warm up the links and the jit first, not reported
+        new Run(most, false, messages / 4 + 1).execute();
+        new Run(most, true, messages / 4 + 1).execute();
+        for (int n : sizes) {
+            new Run(n, false, messages).execute().report();
+            new Run(n, true, messages).execute().report();
+        }
+        System.out.println(String.format("lossy: %.0f%% of sends dropped, repair: the same with a digest from each node every %dms",
+            LOSS * 100, REPAIR_MS));
+        for (int n : sizes) {
+            new Run(n, true, messages, LOSS, false).execute().report();
+            new Run(n, true, messages, LOSS, true).execute().report();
+        }
+        System.exit(0);
     }
 
+    // one cluster size and mode
+    static class Run {
+        private final int nodes;
+        private final boolean gossip;
+        private final int messages;
+        private final double loss; // chance each send is dropped
+        private final boolean repair; // send repair digests
+        private final List<Member> members = new ArrayList<>();
+        private final Gossip.SeenCache[] seen; // each node's seen cache
+        private final BitSet[] has; // messages each node has, what its digests list
+        private final BlockchainBlock[] sent; // each message, to send again on repair
+        private final long[] sentAt; // System.nanoTime() each message left the origin
+        private final long[] latencies; // one per delivery to a node other than the origin
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicLong originSends = new AtomicLong();
+        private final AtomicLong sends = new AtomicLong();
+        private final CountDownLatch done;
+        private volatile long convergedAt; // System.nanoTime() every node had every message, 0 if they never did
+
+        Run(int n, boolean g, int m) {
+            this(n, g, m, 0, false);
+        }
+
+        Run(int n, boolean g, int m, double l, boolean r) {
+            nodes = n;
+            gossip = g;
+            messages = m;
+            loss = l;
+            repair = r;
+            for (int i = 0; i < n; i++) {
+                members.add(member(i));
+            }
+            seen = new Gossip.SeenCache[n];
+            has = new BitSet[n];
+            for (int i = 0; i < n; i++) {
+                seen[i] = new Gossip.SeenCache(Math.max(16, m * 2));
+                has[i] = new BitSet(m);
+            }
+            sent = new BlockchainBlock[m];
+            sentAt = new long[m];
+            latencies = new long[m * (n - 1)];
+            done = new CountDownLatch(m * (n - 1));
+        }
+
+        Run execute() throws InterruptedException {
+            current = this;
+            Thread repairer = null;
+            if (repair) {
+                repairer = new Thread(this::sendDigests, "sim-repair");
+                repairer.setDaemon(true);
+                repairer.start();
+            }
+            for (int i = 0; i < messages; i++) {
+                BlockchainBlock b = new BlockchainBlock();
+                b.setBlockId(String.valueOf(i));
+                b.setCreateTime(String.valueOf(System.currentTimeMillis()));
+                b.setPreviousBlockHash("0");
+                sent[i] = b;
+                seen[0].add(b.getBlockId());
+                synchronized (has[0]) {
+                    has[0].set(i);
+                }
+                sentAt[i] = System.nanoTime();
+                if (gossip) {
+                    relay(0, b);
+                } else {
+                    byte[] data = WireProtocol.toWire(b);
+                    for (Member m : members) {
+                        if (m.getId() != 0) {
+                            send(0, m, data);
+                        }
+                    }
+                }
+                Thread.sleep(GAP_MS);
+            }
+            done.await(loss > 0 && !repair ? LOSSY_WAIT_MS : TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (repairer != null) {
+                repairer.interrupt();
+            }
+            current = null;
+            return this;
+        }
+
+        // a message arrived at a node
+        void receive(int node, BlockchainBlock b) {
+            if (node >= nodes || !seen[node].add(b.getBlockId())) {
+                return;
+            }
+            int i = Integer.parseInt(b.getBlockId());
+            synchronized (has[node]) {
+                has[node].set(i);
+            }
+            int n = delivered.getAndIncrement();
+            if (n < latencies.length) {
+                latencies[n] = System.nanoTime() - sentAt[i];
+            }
+            if (n == latencies.length - 1) {
+                convergedAt = System.nanoTime();
+            }
+            done.countDown();
+            if (gossip) {
+                relay(node, b);
+            }
+        }
+
+        // every REPAIR_MS, each node tells a random peer which messages it has, like Gossip.sendDigest
+        private void sendDigests() {
+            while (true) {
+                try {
+                    Thread.sleep(REPAIR_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int node = 0; node < nodes; node++) {
+                    Digest d = new Digest();
+                    d.setSender(node);
+                    d.setHeight(-1);
+                    synchronized (has[node]) {
+                        for (int i = has[node].nextSetBit(0); i >= 0; i = has[node].nextSetBit(i + 1)) {
+                            d.getRecords().add(String.valueOf(i));
+                        }
+                    }
+                    Member to = Gossip.pickPeers(members, node, 1).get(0);
+                    if (!lost()) {
+                        PeerLinkManager.getInstance().getLink(to.getHost(), to.getKeyPort()).send(WireProtocol.toWire(d));
+                    }
+                }
+            }
+        }
+
+        // a node got a digest, send back the messages it has that the sender didn't list, like Gossip.repair
+        void repair(int node, Digest d) {
+            if (node >= nodes || d.getSender() < 0 || d.getSender() >= nodes) {
+                return;
+            }
+            BitSet missing;
+            synchronized (has[node]) {
+                missing = (BitSet) has[node].clone();
+            }
+            for (String id : d.getRecords()) {
+                missing.clear(Integer.parseInt(id));
+            }
+            Member to = members.get(d.getSender());
+            for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                send(node, to, WireProtocol.toWire(sent[i]));
+            }
+        }
+
+        private void relay(int node, BlockchainBlock b) {
+            byte[] data = WireProtocol.toWire(b);
+            for (Member m : Gossip.pickPeers(members, node, Gossip.FANOUT)) {
+                send(node, m, data);
+            }
+        }
+
+        private void send(int from, Member to, byte[] data) {
+            sends.incrementAndGet();
+            if (from == 0) {
+                originSends.incrementAndGet();
+            }
+            if (!lost()) {
+                PeerLinkManager.getInstance().getLink(to.getHost(), to.getUnverifiedPort()).send(data);
+            }
+        }
+
+        // drop this send, loss of the time
+        private boolean lost() {
+            return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+        }
+
+        void report() {
+            int n = Math.min(delivered.get(), latencies.length);
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            String mode = !gossip ? "multicast" : loss == 0 ? "gossip" : repair ? "repair" : "lossy";
+            // from the last message leaving the origin
+            String converge = convergedAt == 0 ? "-" : String.format("%.2f", (convergedAt - sentAt[messages - 1]) / 1e6);
+            System.out.println(String.format("%5d %-9s %8.2f %8.2f %8.2f %8.2f %8.1f%% %11.1f %12.1f %12s",
+                nodes, mode,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                100.0 * n / latencies.length, (double) originSends.get() / messages, (double) sends.get() / messages, converge));
+        }
+
+        private static double percentile(long[] sorted, double q) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            int i = Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1);
+            return sorted[Math.max(0, i)] / 1e6;
+        }
+    }
 }
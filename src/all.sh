@@ -1,7 +1,10 @@
 #! /bin/bash
+# ./all.sh [N] starts N nodes (3 by default) on localhost, one xterm each
 
-xterm -hold -e java Blockchain 0 &
-sleep 2 &
-xterm -hold -e java Blockchain 1 &
-sleep 2 &
-xterm -hold -e java Blockchain 2
+NODES=${1:-3}
+
+for ((pid = 0; pid < NODES - 1; pid++)); do
+    xterm -hold -e java -Dblockchain.nodes=$NODES Blockchain $pid &
+    sleep 2
+done
+xterm -hold -e java -Dblockchain.nodes=$NODES Blockchain $((NODES - 1))
@@ -0,0 +1,95 @@
+package bench;
+
+import java.io.File;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+
+// what the JMH benchmarks need from the node, implemented by Blockchain.BenchmarkOps
+// the node's classes are in the default package, which a named package can't import, so the
+// benchmarks call the node through this. the node is compiled against it, so renaming anything
+// it calls breaks the node's build, not a benchmark run
+// node objects- blocks, ledgers, signature schemes- are passed as Object, checked exceptions come back unchecked
+public interface NodeOps {
+    Object newBlock();
+
+    void setBlockId(Object b, String id);
+
+    void setCreateTime(Object b, long millis);
+
+    void setCreatingProcessId(Object b, int pid);
+
+    void setPreviousBlockHash(Object b, String hash);
+
+    void setNonce(Object b, long nonce);
+
+    void setDifficulty(Object b, int difficulty);
+
+    void setSealTime(Object b, long millis);
+
+    void setBlockHash(Object b, String hash);
+
+    void setSolvedProcessId(Object b, int pid);
+
+    // the records, and their merkle root
+    void setRecords(Object b, List<?> records);
+
+    String calc(Object b);
+
+    byte[] hash(Object b);
+
+    // digest state of the header up to the nonce, as a miner starts each solve with
+    MessageDigest prefixState(Object b);
+
+    void putLong(byte[] buf, int off, long v);
+
+    boolean meetsTarget(byte[] hash, int difficulty);
+
+    Object createXml();
+
+    Object createBlock(Object createXml, String line, int pid);
+
+    Object createSignedBlock(Object createXml, String line, int pid, PrivateKey key);
+
+    String marshalFromBlockchainBlock(Object createXml, Object b);
+
+    String marshal(Object o);
+
+    Object unmarshalBlock(String xml);
+
+    byte[] encode(Object o);
+
+    // the stream starts after the frame's MAGIC byte
+    Object readFrame(InputStream in);
+
+    // the scheme CreateXml signs new blocks with, -Dblockchain.signature
+    Object configuredScheme();
+
+    Object scheme(String name);
+
+    KeyPair generateKeyPair(Object scheme);
+
+    byte[] sign(byte[] data, PrivateKey key, Object scheme);
+
+    boolean verify(byte[] data, PublicKey key, byte[] sig, Object scheme);
+
+    // register pid's key, as if its key had been multicast to us
+    void storeKey(int pid, PublicKey key);
+
+    List<Object> openLedger(File dir);
+
+    void flushLedger(List<Object> ledger);
+
+    // verify the whole chain, true if every block passed
+    boolean verifyChain(List<Object> chain);
+
+    // sets up the unverified pool the miners check against, no listener is started
+    void unverifiedPool();
+
+    void addUnverified(Object b);
+
+    Object mine(Object b);
+}